@@ -0,0 +1,113 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/** Compares adding a folder of 10,000 files of 4 KB in 100 folders with one add against
+ *  adding the same number of files one add at a time. It writes two such folders with
+ *  different contents into a temporary folder, then starts itself again in a new JVM in
+ *  that folder, since KabGit works on the current directory. There it inits a repository,
+ *  adds every file of the first folder with its own add, saving after each as the daemon
+ *  does, and then adds the second folder with a single add, and again once it is staged.
+ *  Back in the first JVM, it adds a sample of files with one kabgit process each, which is
+ *  what a shell loop over add costs, and fails unless every file ended up staged. Run it
+ *  with
+ *      java AddBenchmark [number of files] [number of processes]
+ */
+public class AddBenchmark {
+    private static final int FILES = 10000;
+    private static final int FOLDERS = 100;
+    private static final int SIZE = 4 * 1024;
+    private static final int PROCESSES = 50;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("--in-repo")) {
+            inRepo(Integer.parseInt(args[1]));
+            return;
+        }
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : FILES;
+        int processes = args.length > 1 ? Integer.parseInt(args[1]) : PROCESSES;
+        File root = Bench.tempDir("kabgit-add");
+        try {
+            Random random = new Random(13);
+            byte[] content = new byte[SIZE];
+            String[] sets = {"loop", "bulk"};
+            for (String set: sets) {
+                for (int i = 0; i < count; i++) {
+                    File file = new File(root, set + "/d" + (i % FOLDERS) + "/f" + i);
+                    file.getParentFile().mkdirs();
+                    random.nextBytes(content);
+                    Files.write(file.toPath(), content);
+                }
+            }
+            for (int i = 0; i < processes; i++) {
+                random.nextBytes(content);
+                Files.write(new File(root, "cli" + i).toPath(), content);
+            }
+            String files = Integer.toString(count);
+            Process child = Bench.java(root, "AddBenchmark", "--in-repo", files).inheritIO()
+                .start();
+            if (child.waitFor() != 0) {
+                throw new IllegalStateException("The run in the repository failed.");
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < processes; i++) {
+                Bench.java(root, "KabGit", "add", "cli" + i)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD).start().waitFor();
+            }
+            System.out.println("one process per file: " + Bench.millis(start) / processes
+                               + " ms per file, " + processes + " files");
+
+            Process status = Bench.java(root, "KabGit", "status").start();
+            String out = new String(status.getInputStream().readAllBytes(),
+                                    StandardCharsets.UTF_8);
+            status.waitFor();
+            int staged = staged(out);
+            if (staged != 2 * count + processes) {
+                throw new IllegalStateException(staged + " files are staged instead of "
+                                                + (2 * count + processes) + ".");
+            }
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** Runs the two kinds of add in the current directory and prints their times. */
+    private static void inRepo(int count) {
+        KabGit git = new KabGit();
+        git.loadTree();
+        git.run(new String[] {"init"});
+        git.saveTree();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            git.run(new String[] {"add", "loop/d" + (i % FOLDERS) + "/f" + i});
+            git.saveTree();
+        }
+        System.out.println("one add per file:     " + Bench.millis(start) + " ms for "
+                           + count + " files");
+        start = System.nanoTime();
+        git.run(new String[] {"add", "bulk"});
+        git.saveTree();
+        System.out.println("add <folder>:         " + Bench.millis(start) + " ms for "
+                           + count + " files");
+        start = System.nanoTime();
+        git.run(new String[] {"add", "bulk"});
+        git.saveTree();
+        System.out.println("add <folder> again:   " + Bench.millis(start) + " ms");
+    }
+
+    /** Returns the number of files listed under the staged files of a status output. */
+    private static int staged(String status) {
+        int count = 0;
+        boolean inStaged = false;
+        for (String line: status.split("\n")) {
+            if (line.startsWith("===")) {
+                inStaged = line.equals("=== Staged Files ===");
+            } else if (inStaged && !line.isEmpty()) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
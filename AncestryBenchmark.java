@@ -0,0 +1,115 @@
+import java.io.File;
+import java.util.HashSet;
+import java.util.Random;
+
+/** Compares the split point and ancestry queries of CommitGraph with the walks that
+ *  findSplitPoint and checkHistory did before generation numbers and skip pointers: the
+ *  whole first parent chain of one commit collected in a HashSet, and the chain of the
+ *  other walked until it meets it. The history is a long main line with a side branch
+ *  that forks near the root, which is the worst case for the old walk. The answers of
+ *  both are also checked against each other on random queries over random forests, which
+ *  are small, since every walk goes back to a root. Run it with
+ *      java AncestryBenchmark [number of commits]
+ */
+public class AncestryBenchmark {
+    private static final int COMMITS = 1000000;
+    private static final int SIDE = 1000;
+    private static final int FORK = 10;
+    private static final int FORESTS = 20;
+    private static final int FOREST_SIZE = 1000;
+    private static final int QUERIES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : COMMITS;
+        File root = Bench.tempDir("kabgit-ancestry");
+        try {
+            long start = System.nanoTime();
+            CommitGraph graph = new CommitGraph(root.getPath());
+            for (int id = 0; id < count; id++) {
+                graph.add(id, id - 1, -1, "main", "2026-10-16 12:00:00");
+            }
+            for (int id = count; id < count + SIDE; id++) {
+                graph.add(id, id == count ? FORK : id - 1, -1, "side", "2026-10-16 12:00:00");
+            }
+            System.out.println("Built " + (count + SIDE) + " commits in " + Bench.millis(start)
+                               + " ms.");
+            int main = count - 1;
+            int side = count + SIDE - 1;
+
+            int rounds = 5;
+            long[] walks = new long[rounds];
+            for (int i = 0; i < rounds; i++) {
+                start = System.nanoTime();
+                if (walkSplitPoint(graph, main, side) != FORK) {
+                    throw new IllegalStateException("Wrong split point from the walk.");
+                }
+                walks[i] = System.nanoTime() - start;
+            }
+            System.out.println("Split point by walking into a HashSet: "
+                               + Bench.median(walks) / 1000 + " us per query.");
+
+            int repeat = 100000;
+            for (int i = 0; i < rounds; i++) {
+                start = System.nanoTime();
+                for (int j = 0; j < repeat; j++) {
+                    if (graph.lowestCommonAncestor(main, side) != FORK) {
+                        throw new IllegalStateException("Wrong split point from the graph.");
+                    }
+                }
+                walks[i] = System.nanoTime() - start;
+            }
+            System.out.printf("Split point by lowestCommonAncestor: %.3f us per query.%n",
+                              Bench.median(walks) / 1000.0 / repeat);
+            for (int i = 0; i < rounds; i++) {
+                start = System.nanoTime();
+                for (int j = 0; j < repeat; j++) {
+                    if (!graph.isAncestor(FORK, main) || graph.isAncestor(side, main)) {
+                        throw new IllegalStateException("Wrong ancestry from the graph.");
+                    }
+                }
+                walks[i] = System.nanoTime() - start;
+            }
+            System.out.printf("Two isAncestor queries: %.3f us.%n",
+                              Bench.median(walks) / 1000.0 / repeat);
+
+            Random random = new Random(7);
+            for (int forest = 0; forest < FORESTS; forest++) {
+                File dir = new File(root, "forest" + forest);
+                CommitGraph small = new CommitGraph(dir.getPath());
+                for (int id = 0; id < FOREST_SIZE; id++) {
+                    int parent = id == 0 || random.nextInt(50) == 0 ? -1 : random.nextInt(id);
+                    small.add(id, parent, -1, "forest", "2026-10-16 12:00:00");
+                }
+                for (int i = 0; i < QUERIES; i++) {
+                    int a = random.nextInt(FOREST_SIZE);
+                    int b = random.nextInt(FOREST_SIZE);
+                    int split = walkSplitPoint(small, a, b);
+                    if (small.lowestCommonAncestor(a, b) != split
+                            || small.isAncestor(a, b) != (split == a)) {
+                        throw new IllegalStateException("Different answers for " + a + " and " + b
+                                                        + ".");
+                    }
+                }
+            }
+            System.out.println("Checked " + FORESTS * QUERIES
+                               + " random queries over random forests against the walk.");
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** Returns the split point of a and b the way findSplitPoint found it before the graph
+     *  had generation numbers, or -1 if they share no history. */
+    private static int walkSplitPoint(CommitGraph graph, int a, int b) {
+        HashSet<Integer> seen = new HashSet<Integer>();
+        for (int id = a; id >= 0; id = graph.parent(id)) {
+            seen.add(id);
+        }
+        for (int id = b; id >= 0; id = graph.parent(id)) {
+            if (seen.contains(id)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/** Helpers shared by the benchmarks, which are plain classes with a main method that build
+ *  what they measure in a temporary folder, print their timings and delete the folder.
+ */
+public class Bench {
+    /** Returns the milliseconds since the given System.nanoTime value.
+     *  @param start long value of System.nanoTime at the start */
+    public static long millis(long start) {
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    /** Returns the median of the given times, in the same unit.
+     *  @param times long[] measured times */
+    public static long median(long[] times) {
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        return sorted[sorted.length / 2];
+    }
+
+    /** Creates a new temporary folder with a name starting with the given prefix.
+     *  @param prefix String start of the name */
+    public static File tempDir(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /** Deletes the given file, or the given folder and everything in it.
+     *  @param file File to delete */
+    public static void delete(File file) throws IOException {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child: children) {
+                delete(child);
+            }
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    /** Returns a builder for a new JVM that runs the given class with the given arguments
+     *  in the given folder, on the class path of this one made absolute. Its error output
+     *  goes to its standard output.
+     *  @param dir File folder to run in
+     *  @param args String... name of the main class and its arguments */
+    public static ProcessBuilder java(File dir, String... args) {
+        List<String> path = new ArrayList<String>();
+        String[] entries = System.getProperty("java.class.path").split(File.pathSeparator);
+        for (String entry: entries) {
+            path.add(new File(entry).getAbsolutePath());
+        }
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        cmd.add("-cp");
+        cmd.add(String.join(File.pathSeparator, path));
+        cmd.addAll(List.of(args));
+        return new ProcessBuilder(cmd).directory(dir).redirectErrorStream(true);
+    }
+}
@@ -0,0 +1,75 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/** Measures how fast checkout writes and deletes files, writing them one at a time, as
+ *  the sequential path did, and on the default pool of the Materializer. It stores
+ *  10,000 files of about 11 KB in 100 folders in an object store in a temporary folder,
+ *  then writes all of them out and deletes them again a few times with each setting, and
+ *  prints every run in milliseconds. Both settings must write the same bytes. Run it with
+ *      java CheckoutBenchmark [number of files] [number of runs]
+ */
+public class CheckoutBenchmark {
+    private static final int FILES = 10000;
+    private static final int FOLDERS = 100;
+    private static final int SIZE = 11 * 1024;
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : FILES;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : RUNS;
+        File root = Bench.tempDir("kabgit-checkout");
+        try {
+            String metadata = new File(root, ".kabgit").getPath();
+            new File(metadata, "objects").mkdirs();
+            ObjectStore store = new ObjectStore(metadata);
+            StagingIndex index = new StagingIndex(metadata);
+            File source = new File(root, "source.tmp");
+            Map<String, String> files = new TreeMap<String, String>();
+            Random random = new Random(11);
+            byte[] content = new byte[SIZE];
+            for (int i = 0; i < count; i++) {
+                random.nextBytes(content);
+                Files.write(source.toPath(), content);
+                String name = "d" + (i % FOLDERS) + "/f" + i;
+                files.put(new File(new File(root, "work"), name).getPath(), store.put(source));
+            }
+            source.delete();
+
+            int[] settings = {1, Materializer.defaultThreads()};
+            for (int threads: settings) {
+                Materializer materializer = new Materializer(store, index, threads);
+                StringBuilder writes = new StringBuilder();
+                StringBuilder deletes = new StringBuilder();
+                for (int run = 0; run < runs; run++) {
+                    long start = System.nanoTime();
+                    Map<String, IOException> errors = materializer.write(files);
+                    writes.append(' ').append(Bench.millis(start));
+                    if (!errors.isEmpty()) {
+                        throw errors.values().iterator().next();
+                    }
+                    check(store, files);
+                    start = System.nanoTime();
+                    materializer.delete(files.keySet());
+                    deletes.append(' ').append(Bench.millis(start));
+                }
+                System.out.println("threads=" + threads + ": writing " + count + " files"
+                                   + writes + " ms, deleting them" + deletes + " ms");
+            }
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** Throws an IllegalStateException if a written file does not hold its content. */
+    private static void check(ObjectStore store, Map<String, String> files) {
+        for (Map.Entry<String, String> e: files.entrySet()) {
+            if (!store.sameContent(new File(e.getKey()), e.getValue())) {
+                throw new IllegalStateException(e.getKey() + " was not written correctly.");
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+import java.util.SplittableRandom;
+
+/** Cuts large files into chunks at positions chosen by their content, in the style of
+ *  FastCDC, so that an edit in the middle of a file changes only the chunks around it and
+ *  every other chunk keeps its bytes and its hash. A gear hash is rolled over the bytes,
+ *  shifting in one table entry per byte, and a chunk ends where the top bits of the hash
+ *  are all zero. No cut is made in the first MIN_SIZE bytes of a chunk, a stricter mask is
+ *  used until AVG_SIZE bytes and a looser one after, which keeps chunk sizes close to
+ *  AVG_SIZE, and every chunk ends by MAX_SIZE.
+ *  The gear table comes from a fixed seed. Changing it, or the sizes, does not break stored
+ *  files, but new versions would then share no chunks with old ones.
+ */
+public class Chunker {
+    public static final int MIN_SIZE = 256 * 1024;
+    public static final int AVG_SIZE = 1024 * 1024;
+    public static final int MAX_SIZE = 4 * 1024 * 1024;
+    private static final long STRICT_MASK = -1L << (64 - 22);
+    private static final long LOOSE_MASK = -1L << (64 - 18);
+    private static final long[] GEAR = new long[256];
+
+    static {
+        SplittableRandom random = new SplittableRandom(0x6b616267697443L);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** Returns the length of the chunk that starts at the given offset. Unless the bytes
+     *  given run to the end of the file, at least MAX_SIZE of them must be given, so that
+     *  the cut depends only on the content.
+     *  @param buf byte array holding the bytes
+     *  @param off int offset of the start of the chunk
+     *  @param len int number of bytes available from off */
+    public static int cut(byte[] buf, int off, int len) {
+        if (len <= MIN_SIZE) {
+            return len;
+        }
+        int end = Math.min(len, MAX_SIZE);
+        int normal = Math.min(end, AVG_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & STRICT_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[buf[off + i] & 0xff];
+            if ((hash & LOOSE_MASK) == 0) {
+                return i + 1;
+            }
+        }
+        return end;
+    }
+}
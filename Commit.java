@@ -1,40 +1,45 @@
-import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Map;
 import java.util.Set;
-import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
-
 
+/** A commit holds the hash of the root tree of its files in the TreeStore, rather than a
+ *  map of every file, so a new commit shares every folder it does not change with its
+ *  previous commit. The full map of files is only built when it is asked for.
+ */
 public class Commit implements Serializable {
-    private Commit parent;
+    private int parentID = -1;
+    private int secondParentID = -1;
     private String message;
     private int id;
-    private HashMap<String, String> committedFiles = new HashMap<String, String>();
+    private String tree;
     private String dateTime;
+    private transient TreeStore trees;
+    private transient Map<String, String> committedFiles;
     
     /** Constructor for the commit object. Initializes with a commit message msg, a global
-     * commit ID i, a map of file names to the respective addresses of their most recent
-     * versions, that were inherited from the previous commit filesi, and a pointer to the
-     * previous commit object in the commitTree.
+     * commit ID i, and the hash of the root tree treei that holds its files in the given
+     * TreeStore. The id of the previous commit in the commitTree is set when the commit is
+     * added to it.
      */
-    public Commit(String msg, int i, HashMap<String, String> filesi) {
+    public Commit(String msg, int i, String treei, TreeStore t) {
         id  = i;
         message = msg;
-        committedFiles = filesi;
+        tree = treei;
+        trees = t;
     }
 
-    public Commit(Commit commit) {
-        parent = commit.parent();
-        message = commit.getMessage();
-        id = commit.getID();
-        committedFiles = commit.fileMap();
-        dateTime = commit.dateTime();
+    /** Creates a commit with the message msg and global id i, whose files are those of the
+     *  commit base with the given changes made to them.
+     *  @param msg String commit message
+     *  @param i int global commit id
+     *  @param base Commit whose files are inherited
+     *  @param changes Map of file names to content hashes, or to null for removed files */
+    public Commit(String msg, int i, Commit base, Map<String, String> changes)
+            throws IOException {
+        this(msg, i, base.trees.update(base.tree, changes), base.trees);
     }
     
     /** Returns the current commit message. */
@@ -51,21 +56,48 @@ public class Commit implements Serializable {
         id = i;
     }
     
+    /** Returns the hash of the root tree of the files of this commit. */
+    public String tree() {
+        return tree;
+    }
+
+    /** Returns the TreeStore the tree of this commit is kept in. */
+    public TreeStore trees() {
+        return trees;
+    }
+
     /** Returns the list of the files that this commit object currently holds */
     public Set<String> files() {
-        return committedFiles.keySet();
+        return fileMap().keySet();
     }
     
-    /** Retrieves the location of the given fileName to the place where it was most 
-     *  recently modified, and committed. 
+    /** Retrieves the hash of the content that the given fileName had when it was most 
+     *  recently modified, and committed, or null if this commit does not hold it. Only the
+     *  folders on the path of the file are read.
      *  @param fileName */
     public String retrieveFile(String fileName) {
-        return committedFiles.get(fileName);
+        if (committedFiles != null) {
+            return committedFiles.get(fileName);
+        }
+        try {
+            return trees.lookup(tree, fileName);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
     }
     
-    /** Returns a map that maps file names to their respective addresses where each file
-     * was most recently modifed, added, and committed. */
-    public HashMap<String, String> fileMap() {
+    /** Returns an unmodifiable map that maps file names to the hashes of their contents as
+     * of when each file was most recently modifed, added, and committed. */
+    public synchronized Map<String, String> fileMap() {
+        if (committedFiles == null) {
+            try {
+                committedFiles = Collections.unmodifiableMap(trees.flatten(tree));
+            } catch (IOException e) {
+                e.printStackTrace();
+                return Collections.unmodifiableMap(new HashMap<String, String>());
+            }
+        }
         return committedFiles;
     }
     
@@ -83,33 +115,6 @@ public class Commit implements Serializable {
         return dateTime + "\n" + message + "\n";
     }
     
-    /** Whenever something is committed, it inherits files from the previous commit which
-     * are already passed into the constructor. This method adds to the map, the files  
-     * that were staged for that commit and contain new locations. This method is called
-     * in KabGit's commit method.
-     * @param stagedFiles
-     */
-    public void addStagedFiles(ArrayList<String> stagedFiles) {
-        String newDir = "./.kabgit/" + id;
-        File dir = new File(newDir);
-        if (!dir.exists()) {
-            dir.mkdir();
-        }
-        for (String file: stagedFiles) {
-            Path source = Paths.get(file);
-            Path destination = Paths.get(newDir + "/" + file);
-            try {
-                File tempFile = new File(newDir + "/" + file);
-                tempFile.getParentFile().mkdirs(); 
-                tempFile.createNewFile();
-                Files.copy(source, destination, REPLACE_EXISTING, COPY_ATTRIBUTES);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-            committedFiles.put(file, newDir + "/" + file);
-        }
-    }
-
     /** Returns the data of the log */
     public String logData() {
         String res = "Commit " + id + ".\n";
@@ -117,13 +122,24 @@ public class Commit implements Serializable {
         return res;
     }
 
-    public Commit parent() {
-        return parent;
+    /** Returns the global id of the previous commit, or -1 for the initial commit. */
+    public int parentID() {
+        return parentID;
     }
 
-    public void setParent(Commit p) {
-        parent = p;
+    public void setParentID(int p) {
+        parentID = p;
     }   
+
+    /** Returns the global id of the commit that was merged in by this commit, or -1 if it
+     *  is not a merge commit. */
+    public int secondParentID() {
+        return secondParentID;
+    }
+
+    public void setSecondParentID(int p) {
+        secondParentID = p;
+    }
 }
 
 
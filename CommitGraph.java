@@ -0,0 +1,469 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Compact form of the commit history, used by every command that walks it. Instead of
+ *  one object per commit, the graph keeps int arrays indexed by commit id that hold the
+ *  parent id, the second parent id of merge commits, and the positions of the message and
+ *  the date and time in two tables of interned strings, so that repeated messages and
+ *  timestamps are stored once.
+ *  Each commit also has a generation number, one more than the largest of its parents,
+ *  and a skip pointer to an older ancestor along its first parents. Skip pointers are
+ *  chosen as in a skew binary random access list, by the depth of each commit along its
+ *  first parents: a commit skips twice as far as its parent whenever its parent and its
+ *  parent's skip target skip equally far, and otherwise points at its parent. This lets
+ *  ancestorAt reach any first parent ancestor in a logarithmic number of steps while
+ *  storing a single extra int per commit. As long as the history has no merge commits,
+ *  isAncestor and lowestCommonAncestor use the skip pointers too. Once it does, they
+ *  walk both parents from the newest commit down by generation, and never visit a commit
+ *  older than the answer. Such a walk marks the commits it visits with the number of the
+ *  walk, in an array kept from one walk to the next, and keeps its queue in a reused int
+ *  array, so its cost depends on the commits it visits and not on the size of the history.
+ *  The arrays are saved in commits/graph as one fixed size record per id, holding the
+ *  parent, the second parent, one more than the message position so that 0 marks a missing
+ *  id, the time position, the generation and the skip pointer. The tables are saved in
+ *  commits/messages and commits/times as lists of length-prefixed UTF-8 strings. All of
+ *  them are only ever appended to and are read back with plain loops, so the depth of the
+ *  history never matters. The graph is read from disk the first time it is used, and its
+ *  three files are kept open once a commit has been added, so that adding one costs a few
+ *  writes.
+ */
+public class CommitGraph {
+    private static final int RECORD_SIZE = 24;
+    private File graphFile;
+    private File messagesFile;
+    private File timesFile;
+    private RandomAccessFile graph;
+    private RandomAccessFile messageLog;
+    private RandomAccessFile timeLog;
+    private ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private boolean loaded = false;
+    private int size = 0;
+    private int[] parents = new int[16];
+    private int[] secondParents = new int[16];
+    private int[] messages = new int[16];
+    private int[] times = new int[16];
+    private int[] generations = new int[16];
+    private int[] skips = new int[16];
+    private int[] depths = new int[16];
+    private int[] walks = new int[16];
+    private byte[] marks = new byte[16];
+    private int[] queue = new int[16];
+    private int walk = 0;
+    private int merges = 0;
+    private ArrayList<String> messageTable = new ArrayList<String>();
+    private ArrayList<String> timeTable = new ArrayList<String>();
+    private HashMap<String, Integer> messageIndex = new HashMap<String, Integer>();
+    private HashMap<String, Integer> timeIndex = new HashMap<String, Integer>();
+
+    /** Creates a graph stored in the commits folder of the given metadata directory.
+     *  @param root String path of the .kabgit folder */
+    public CommitGraph(String root) {
+        File dir = new File(root, "commits");
+        graphFile = new File(dir, "graph");
+        messagesFile = new File(dir, "messages");
+        timesFile = new File(dir, "times");
+    }
+
+    /** Adds the commit with the given id, parents, message and date and time to the graph
+     *  and saves it, replacing any earlier commit with the same id.
+     *  @param id int global commit id
+     *  @param parent int id of the previous commit, or -1
+     *  @param secondParent int id of the merged commit of a merge commit, or -1
+     *  @param message String commit message
+     *  @param dateTime String date and time of the commit */
+    public synchronized void add(int id, int parent, int secondParent, String message,
+                                 String dateTime) throws IOException {
+        load();
+        open();
+        int m = intern(message, messageTable, messageIndex, messageLog);
+        int t = intern(dateTime, timeTable, timeIndex, timeLog);
+        set(id, parent, secondParent, m, t);
+        int generation = parent < 0 ? 1 : generations[parent] + 1;
+        if (secondParent >= 0) {
+            generation = Math.max(generation, generations[secondParent] + 1);
+        }
+        generations[id] = generation;
+        link(id);
+        record.clear();
+        record.putInt(parent).putInt(secondParent).putInt(m + 1).putInt(t)
+              .putInt(generation).putInt(skips[id]);
+        long position = (long) id * RECORD_SIZE;
+        if (graph.length() < position) {
+            graph.setLength(position);
+        }
+        graph.seek(position);
+        graph.write(record.array());
+    }
+
+    private void open() throws IOException {
+        if (graph != null) {
+            return;
+        }
+        graphFile.getParentFile().mkdirs();
+        graph = new RandomAccessFile(graphFile, "rw");
+        messageLog = new RandomAccessFile(messagesFile, "rw");
+        timeLog = new RandomAccessFile(timesFile, "rw");
+    }
+
+    /** Sets the depth and skip pointer of the given commit from those of its parent. */
+    private void link(int id) {
+        int parent = parents[id];
+        int skip = parent;
+        if (parent >= 0 && skips[parent] >= 0) {
+            int grand = skips[parent];
+            if (skips[grand] >= 0 && depths[parent] - depths[grand]
+                    == depths[grand] - depths[skips[grand]]) {
+                skip = skips[grand];
+            }
+        }
+        depths[id] = parent < 0 ? 1 : depths[parent] + 1;
+        skips[id] = skip;
+    }
+
+    /** Returns true if a commit with the given id is in the graph.
+     *  @param id */
+    public synchronized boolean contains(int id) {
+        load();
+        return id >= 0 && id < size && messages[id] >= 0;
+    }
+
+    /** Returns one more than the largest commit id in the graph. */
+    public synchronized int size() {
+        load();
+        return size;
+    }
+
+    /** Returns the id of the previous commit of the given commit, or -1 if it has none.
+     *  @param id */
+    public synchronized int parent(int id) {
+        load();
+        return parents[id];
+    }
+
+    /** Returns the message of the given commit.
+     *  @param id */
+    public synchronized String message(int id) {
+        load();
+        return messageTable.get(messages[id]);
+    }
+
+    /** Returns the date and time of the given commit.
+     *  @param id */
+    public synchronized String dateTime(int id) {
+        load();
+        return timeTable.get(times[id]);
+    }
+
+    /** Returns the id of the second parent of the given commit, or -1 if it is not a merge
+     *  commit.
+     *  @param id */
+    public synchronized int secondParent(int id) {
+        load();
+        return secondParents[id];
+    }
+
+    /** Returns the generation number of the given commit, which is 1 for a commit with no
+     *  parent.
+     *  @param id */
+    public synchronized int generation(int id) {
+        load();
+        return generations[id];
+    }
+
+    /** Returns the ancestor of the given commit along its first parents that is the given
+     *  number of commits away from the root, counting the root as 1, or -1 if the commit is
+     *  not that far from its root.
+     *  @param id int commit id
+     *  @param depth int depth of the ancestor */
+    public synchronized int ancestorAt(int id, int depth) {
+        load();
+        if (depth < 1 || depth > depths[id]) {
+            return -1;
+        }
+        while (depths[id] > depth) {
+            int skip = skips[id];
+            if (depths[skip] >= depth) {
+                id = skip;
+            } else {
+                id = parents[id];
+            }
+        }
+        return id;
+    }
+
+    /** Returns true if the commit ancestor is the commit id or one of its ancestors.
+     *  @param ancestor int commit id
+     *  @param id int commit id */
+    public synchronized boolean isAncestor(int ancestor, int id) {
+        load();
+        if (ancestorAt(id, depths[ancestor]) == ancestor) {
+            return true;
+        } else if (merges == 0 || generations[ancestor] >= generations[id]) {
+            return false;
+        }
+        startWalk();
+        int pending = 0;
+        queue[pending++] = id;
+        while (pending > 0) {
+            int next = queue[--pending];
+            if (next == ancestor) {
+                return true;
+            } else if (next < 0 || mark(next) != 0 || generations[next] <= generations[ancestor]) {
+                continue;
+            }
+            setMark(next, 1);
+            if (pending + 2 > queue.length) {
+                queue = Arrays.copyOf(queue, queue.length * 2);
+            }
+            queue[pending++] = parents[next];
+            queue[pending++] = secondParents[next];
+        }
+        return false;
+    }
+
+    /** Returns the most recent commit that is an ancestor of both given commits, or -1 if
+     *  they share no history. When there are several, as after criss-cross merges, the one
+     *  with the highest generation is returned.
+     *  @param a int commit id
+     *  @param b int commit id */
+    public synchronized int lowestCommonAncestor(int a, int b) {
+        load();
+        if (merges > 0) {
+            return mergeBase(a, b);
+        }
+        if (depths[a] > depths[b]) {
+            a = ancestorAt(a, depths[b]);
+        } else {
+            b = ancestorAt(b, depths[a]);
+        }
+        while (a != b) {
+            if (skips[a] != skips[b]) {
+                a = skips[a];
+                b = skips[b];
+            } else {
+                a = parents[a];
+                b = parents[b];
+            }
+            if (a < 0 || b < 0) {
+                return -1;
+            }
+        }
+        return a;
+    }
+
+    /** Returns the common ancestor of a and b with the highest generation, by walking back
+     *  from both in order of decreasing generation and marking which of the two reach each
+     *  commit. The first commit reached from both is the answer, since every commit that is
+     *  left has a lower generation. */
+    private int mergeBase(int a, int b) {
+        startWalk();
+        int pending = 0;
+        setMark(a, 1);
+        setMark(b, mark(b) | 2);
+        pending = push(pending, a);
+        if (a != b) {
+            pending = push(pending, b);
+        }
+        while (pending > 0) {
+            int id = queue[0];
+            pending = pop(pending);
+            if (mark(id) == 3) {
+                return id;
+            }
+            for (int i = 0; i < 2; i++) {
+                int parent = i == 0 ? parents[id] : secondParents[id];
+                if (parent >= 0 && (mark(parent) | mark(id)) != mark(parent)) {
+                    if (mark(parent) == 0) {
+                        pending = push(pending, parent);
+                    }
+                    setMark(parent, mark(parent) | mark(id));
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Starts a new walk, in which no commit is marked yet. */
+    private void startWalk() {
+        walk += 1;
+        if (walk == Integer.MAX_VALUE) {
+            Arrays.fill(walks, 0);
+            walk = 1;
+        }
+    }
+
+    /** Returns the marks the current walk has left on the given commit. */
+    private int mark(int id) {
+        return walks[id] == walk ? marks[id] : 0;
+    }
+
+    private void setMark(int id, int mark) {
+        walks[id] = walk;
+        marks[id] = (byte) mark;
+    }
+
+    /** Returns true if the walk of mergeBase should visit x before y: the one with the
+     *  higher generation first, and the newer one of two with the same generation. */
+    private boolean before(int x, int y) {
+        return generations[x] != generations[y] ? generations[x] > generations[y] : x > y;
+    }
+
+    /** Adds the given commit to the heap held in the first size entries of queue, and
+     *  returns the new size. */
+    private int push(int size, int id) {
+        if (size == queue.length) {
+            queue = Arrays.copyOf(queue, size * 2);
+        }
+        int i = size;
+        while (i > 0 && before(id, queue[(i - 1) / 2])) {
+            queue[i] = queue[(i - 1) / 2];
+            i = (i - 1) / 2;
+        }
+        queue[i] = id;
+        return size + 1;
+    }
+
+    /** Removes the first commit from the heap held in the first size entries of queue, and
+     *  returns the new size. */
+    private int pop(int size) {
+        int last = queue[--size];
+        int i = 0;
+        while (2 * i + 1 < size) {
+            int child = 2 * i + 1;
+            if (child + 1 < size && before(queue[child + 1], queue[child])) {
+                child += 1;
+            }
+            if (!before(queue[child], last)) {
+                break;
+            }
+            queue[i] = queue[child];
+            i = child;
+        }
+        queue[i] = last;
+        return size;
+    }
+
+    private int intern(String s, ArrayList<String> table, HashMap<String, Integer> index,
+                       RandomAccessFile file) throws IOException {
+        Integer i = index.get(s);
+        if (i != null) {
+            return i;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        CommitStore.writeMessage(new DataOutputStream(bytes), s);
+        file.seek(file.length());
+        file.write(bytes.toByteArray());
+        table.add(s);
+        index.put(s, table.size() - 1);
+        return table.size() - 1;
+    }
+
+    private void set(int id, int parent, int secondParent, int message, int time) {
+        if (id >= parents.length) {
+            int length = parents.length;
+            int capacity = Math.max(id + 1, length * 2);
+            parents = Arrays.copyOf(parents, capacity);
+            secondParents = Arrays.copyOf(secondParents, capacity);
+            depths = Arrays.copyOf(depths, capacity);
+            messages = Arrays.copyOf(messages, capacity);
+            times = Arrays.copyOf(times, capacity);
+            generations = Arrays.copyOf(generations, capacity);
+            skips = Arrays.copyOf(skips, capacity);
+            walks = Arrays.copyOf(walks, capacity);
+            marks = Arrays.copyOf(marks, capacity);
+            Arrays.fill(messages, length, capacity, -1);
+        }
+        parents[id] = parent;
+        if (id < size && messages[id] >= 0 && secondParents[id] >= 0) {
+            merges -= 1;
+        }
+        if (secondParent >= 0) {
+            merges += 1;
+        }
+        secondParents[id] = secondParent;
+        messages[id] = message;
+        times[id] = time;
+        size = Math.max(size, id + 1);
+    }
+
+    /** Reads the graph and its string tables from disk, if that has not happened yet. */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        Arrays.fill(messages, -1);
+        try {
+            readTable(messagesFile, messageTable, messageIndex);
+            readTable(timesFile, timeTable, timeIndex);
+            if (!graphFile.exists()) {
+                return;
+            }
+            int count = (int) (graphFile.length() / RECORD_SIZE);
+            parents = new int[Math.max(count, 16)];
+            secondParents = new int[parents.length];
+            depths = new int[parents.length];
+            messages = new int[parents.length];
+            times = new int[parents.length];
+            generations = new int[parents.length];
+            skips = new int[parents.length];
+            walks = new int[parents.length];
+            marks = new byte[parents.length];
+            Arrays.fill(messages, -1);
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(graphFile), 1 << 16))) {
+                for (int id = 0; id < count; id++) {
+                    parents[id] = in.readInt();
+                    secondParents[id] = in.readInt();
+                    messages[id] = in.readInt() - 1;
+                    times[id] = in.readInt();
+                    generations[id] = in.readInt();
+                    skips[id] = in.readInt();
+                    if (messages[id] >= 0) {
+                        depths[id] = parents[id] < 0 ? 1 : depths[parents[id]] + 1;
+                        if (secondParents[id] >= 0) {
+                            merges += 1;
+                        }
+                    }
+                }
+            }
+            size = count;
+            while (size > 0 && messages[size - 1] < 0) {
+                size -= 1;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static void readTable(File file, ArrayList<String> table,
+                                  HashMap<String, Integer> index) throws IOException {
+        if (!file.exists()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            while (true) {
+                String s;
+                try {
+                    s = CommitStore.readMessage(in);
+                } catch (EOFException e) {
+                    break;
+                }
+                index.put(s, table.size());
+                table.add(s);
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+import java.io.File;
+
+/** Builds a linear history of a million commits in a CommitGraph in a temporary folder,
+ *  reloads it from disk into a new graph, and walks it from the newest commit back to the
+ *  root on a thread with a small stack, checking every parent and message on the way.
+ *  Prints how long each step took. Run it with
+ *      java CommitGraphStress [number of commits]
+ */
+public class CommitGraphStress {
+    private static final int COMMITS = 1000000;
+    private static final long STACK_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : COMMITS;
+        File root = Bench.tempDir("kabgit-graph");
+        try {
+            long start = System.nanoTime();
+            CommitGraph graph = new CommitGraph(root.getPath());
+            for (int id = 0; id < count; id++) {
+                graph.add(id, id - 1, -1, message(id), "2026-10-16 12:00:00");
+            }
+            System.out.println("Built " + count + " commits in " + Bench.millis(start)
+                               + " ms.");
+
+            start = System.nanoTime();
+            CommitGraph reloaded = new CommitGraph(root.getPath());
+            if (reloaded.size() != count) {
+                throw new IllegalStateException("Reloaded " + reloaded.size()
+                        + " commits instead of " + count + ".");
+            }
+            System.out.println("Reloaded the graph in " + Bench.millis(start) + " ms.");
+
+            long[] walked = new long[1];
+            Throwable[] failure = new Throwable[1];
+            Thread walker = new Thread(null, () -> {
+                try {
+                    walked[0] = walk(reloaded, count);
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }, "walk", STACK_SIZE);
+            start = System.nanoTime();
+            walker.start();
+            walker.join();
+            if (failure[0] != null) {
+                throw new IllegalStateException("The walk failed.", failure[0]);
+            }
+            System.out.println("Walked " + walked[0] + " commits from tip to root in "
+                    + Bench.millis(start) + " ms.");
+
+            start = System.nanoTime();
+            int middle = reloaded.ancestorAt(count - 1, count / 2);
+            boolean ancestor = reloaded.isAncestor(0, count - 1);
+            if (middle != count / 2 - 1 || !ancestor) {
+                throw new IllegalStateException("Wrong ancestor of the newest commit.");
+            }
+            System.out.println("Found ancestors in " + Bench.millis(start) + " ms.");
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** Returns the message stored for the commit with the given id. Every tenth message
+     *  repeats, so that the table of interned messages is exercised too. */
+    private static String message(int id) {
+        return id % 10 == 0 ? "merge upstream" : "commit " + id;
+    }
+
+    private static long walk(CommitGraph graph, int count) {
+        long walked = 0;
+        int expected = count - 1;
+        for (int id = count - 1; id >= 0; id = graph.parent(id)) {
+            if (id != expected || !graph.message(id).equals(message(id))
+                    || graph.generation(id) != id + 1) {
+                throw new IllegalStateException("Wrong commit " + id + ".");
+            }
+            expected--;
+            walked++;
+        }
+        if (expected != -1) {
+            throw new IllegalStateException("The walk stopped at commit " + expected + ".");
+        }
+        return walked;
+    }
+}
@@ -0,0 +1,127 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+/** On-disk store of commits addressed by their global id, so that a command only reads
+ *  the commits it actually uses. Commits are appended as records to commits.dat, and
+ *  commits.idx holds the 8 byte offset of the record for each id at position id * 8,
+ *  with 0 marking an id that has no commit.
+ *  Record layout: record length, then id, parent id, second parent id, message, date and
+ *  time, and the hash of the root tree of the files of the commit in the TreeStore. The
+ *  message is written as its length and its UTF-8 bytes, so it can be of any size.
+ */
+public class CommitStore {
+    private static final int MAGIC = 0x4b434d34;
+    private File dataFile;
+    private File indexFile;
+    private RandomAccessFile data;
+    private RandomAccessFile index;
+    private TreeStore trees;
+
+    /** Creates a store in the commits folder of the given metadata directory.
+     *  @param root String path of the .kabgit folder
+     *  @param t TreeStore that the trees of the commits are read from */
+    public CommitStore(String root, TreeStore t) {
+        trees = t;
+        File dir = new File(root, "commits");
+        dataFile = new File(dir, "commits.dat");
+        indexFile = new File(dir, "commits.idx");
+    }
+
+    /** Appends the given commit and points its id at it, replacing any earlier commit
+     *  stored under the same id.
+     *  @param commit Commit to write */
+    public synchronized void write(Commit commit) throws IOException {
+        open();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(commit.getID());
+        out.writeInt(commit.parentID());
+        out.writeInt(commit.secondParentID());
+        writeMessage(out, commit.getMessage());
+        out.writeUTF(commit.dateTime() == null ? "" : commit.dateTime());
+        out.writeUTF(commit.tree());
+        long offset = data.length();
+        data.seek(offset);
+        data.writeInt(bytes.size());
+        data.write(bytes.toByteArray());
+        long slot = (long) commit.getID() * 8;
+        if (index.length() < slot) {
+            index.setLength(slot);
+        }
+        index.seek(slot);
+        index.writeLong(offset);
+    }
+
+    /** Returns the commit with the given id, or null if there is none.
+     *  @param id int global commit id */
+    public synchronized Commit read(int id) throws IOException {
+        if (id < 0 || !indexFile.exists()) {
+            return null;
+        }
+        open();
+        long slot = (long) id * 8;
+        if (slot + 8 > index.length()) {
+            return null;
+        }
+        index.seek(slot);
+        long offset = index.readLong();
+        if (offset == 0) {
+            return null;
+        }
+        data.seek(offset);
+        byte[] record = new byte[data.readInt()];
+        data.readFully(record);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        int commitID = in.readInt();
+        int parentID = in.readInt();
+        int secondParentID = in.readInt();
+        String message = readMessage(in);
+        String dateTime = in.readUTF();
+        String tree = in.readUTF();
+        Commit commit = new Commit(message, commitID, tree, trees);
+        commit.setParentID(parentID);
+        commit.setSecondParentID(secondParentID);
+        commit.setDateTime(dateTime);
+        return commit;
+    }
+
+    /** Writes the given message as its length and its UTF-8 bytes. Unlike writeUTF, this
+     *  works for messages of any size.
+     *  @param out DataOutput to write to
+     *  @param message String commit message */
+    static void writeMessage(DataOutput out, String message) throws IOException {
+        byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Reads a message written by writeMessage.
+     *  @param in DataInput to read from */
+    static String readMessage(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void open() throws IOException {
+        if (data != null) {
+            return;
+        }
+        dataFile.getParentFile().mkdirs();
+        data = new RandomAccessFile(dataFile, "rw");
+        index = new RandomAccessFile(indexFile, "rw");
+        if (data.length() == 0) {
+            data.writeInt(MAGIC);
+        } else if (data.readInt() != MAGIC) {
+            throw new IOException("Corrupt commit store " + dataFile);
+        }
+    }
+}
@@ -1,92 +1,172 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Serializable;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Calendar;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.Scanner;
+import java.util.Objects;
+import java.util.PrimitiveIterator;
+import java.util.Set;
+import java.util.stream.IntStream;
 
+/** Keeps track of the branches, the current commit and the staging area. The commits
+ *  themselves live in a CommitStore and are only read when they are used, through a
+ *  bounded cache of recently used commits, so that loading the tree does not depend on the
+ *  length of the history. Branches and the current pointer refer to commits by id.
+ *  Walks over the history, like log and finding split points, use the CommitGraph and
+ *  never read whole commits.
+ */
 public class CommitTree implements Serializable {
-    private ArrayList<String> stagedFiles = new ArrayList<String>();
-    private ArrayList<String> removeFiles = new ArrayList<String>();
-    private HashMap<String, ArrayList<Integer>> messageToID = new HashMap<String, ArrayList<Integer>>();
-    private HashMap<String, Commit> branchMap = new HashMap<String, Commit>();
-    private HashMap<Integer, Commit> commitMap = new HashMap<Integer, Commit>();
+    private static final int CACHE_SIZE = 1024;
+    private static final int EXACT = 0;
+    private static final int WORDS = 1;
+    private static final int TEXT = 2;
+    private LinkedHashSet<String> stagedFiles = new LinkedHashSet<String>();
+    private LinkedHashSet<String> removeFiles = new LinkedHashSet<String>();
+    private HashMap<String, Integer> branchMap = new HashMap<String, Integer>();
     private int globalCount = 0;
-    private Commit currPointer;
+    private int currPointer;
     private String currBranch;
+    private int snapshotSeq = 0;
+    private int mergeParent = -1;
+    private transient Journal journal;
+    private transient CommitStore store;
+    private transient CommitGraph graph;
+    private transient PathFilters filters;
+    private transient MessageIndex search;
+    private transient LinkedHashMap<Integer, Commit> cache;
     
     /** Initializes the CommitTree with the given commit and starts at master branch. 
-     *  @param commit Commit object with which to build the commit tree. */
-    public CommitTree(Commit commit) {
-        currPointer = commit;
+     *  @param commit Commit object with which to build the commit tree.
+     *  @param s CommitStore that the commits of this tree are saved in
+     *  @param g CommitGraph that the history of this tree is saved in
+     *  @param f PathFilters that the paths changed by each commit are saved in
+     *  @param m MessageIndex that the messages of the commits are indexed in */
+    public CommitTree(Commit commit, CommitStore s, CommitGraph g, PathFilters f,
+                      MessageIndex m) throws IOException {
+        setStore(s, g, f, m);
+        write(commit);
+        currPointer = commit.getID();
         currBranch = "master";
         branchMap.put(currBranch, currPointer);
-        commitMap.put(commit.getID(), commit);
+    }
+
+    /** Attaches the store that commits are read from and written to, the graph of their
+     *  history, the filters of the paths they changed and the index of their messages,
+     *  after loading. 
+     *  @param s
+     *  @param g
+     *  @param f
+     *  @param m */
+    public void setStore(CommitStore s, CommitGraph g, PathFilters f, MessageIndex m) {
+        store = s;
+        graph = g;
+        filters = f;
+        search = m;
+        cache = new LinkedHashMap<Integer, Commit>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Commit> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
     }
     
     /** Adds file with fileName to the list of staged files. 
      *  @param fileName */
     public void stageFile(String fileName) {
-        if (!stagedFiles.contains(fileName)) {
-            stagedFiles.add(fileName);
+        if (stagedFiles.add(fileName)) {
+            log(Journal.STAGE, fileName);
         }
     }
     
     /** Unstage the file with the given fileName. 
      *  @param fileName */
     public void unStageFile(String fileName) {
-        stagedFiles.remove(fileName);
+        if (stagedFiles.remove(fileName)) {
+            log(Journal.UNSTAGE, fileName);
+        }
     }
 
     /** Marks the file with the given fileName for removal. 
      *  @param fileName */
     public void markRemoval(String fileName) {
-        removeFiles.add(fileName);
+        if (removeFiles.add(fileName)) {
+            log(Journal.MARK_REMOVAL, fileName);
+        }
     }
     
     /** Removes file with fileName from the list of files that are to be removed 
      *  @param fileName */
     public void unmarkRemoval(String fileName) {
-        removeFiles.remove(fileName);
+        if (removeFiles.remove(fileName)) {
+            log(Journal.UNMARK_REMOVAL, fileName);
+        }
     }
     
     /** Returns the Commit object that the tree currently points at */
     public Commit currentCommit() {
-        return currPointer;
+        return get(currPointer);
     }
     
-    /** Adds the given commit to the commit tree. Reassigns the currPointer to the given
-     *  CommitTree. Also assigns the parent of this commit to the what was originally the
-     *  currPointer. 
+    /** Adds the given commit to the commit tree and writes it to the store. Reassigns the
+     *  currPointer to the given commit. Also assigns the parent of this commit to the what
+     *  was originally the currPointer. Nothing changes and nothing is journaled if the
+     *  commit cannot be written.
      *  @param commit */
-    public void add(Commit commit) {
-        Commit temp = currPointer;
-        commit.setParent(temp);
-        currPointer = commit;
-        if (!messageToID.containsKey(commit.getMessage())) {
-            messageToID.put(commit.getMessage(), new ArrayList<Integer>());
+    public void add(Commit commit) throws IOException {
+        commit.setParentID(currPointer);
+        write(commit);
+        currPointer = commit.getID();
+        log(Journal.ADD_COMMIT, currPointer);
+    }
+
+    /** Writes the given commit to the store, the graph, the path filters and the message
+     *  index and caches it. The changed paths come from a tree diff against its first
+     *  parent. A history from before the message index is indexed as a whole first. */
+    private void write(Commit commit) throws IOException {
+        store.write(commit);
+        graph.add(commit.getID(), commit.parentID(), commit.secondParentID(),
+                  commit.getMessage(), commit.dateTime() == null ? "" : commit.dateTime());
+        Commit parent = parent(commit);
+        TreeStore trees = commit.trees();
+        String from = parent == null ? trees.empty() : parent.tree();
+        filters.add(commit.getID(), trees.diff(from, commit.tree()).keySet());
+        if (search.exists()) {
+            search.add(commit.getID(), commit.getMessage());
+        } else {
+            search.rebuild(graph);
+        }
+        synchronized (cache) {
+            cache.put(commit.getID(), commit);
         }
-        messageToID.get(commit.getMessage()).add(commit.getID());
-        commitMap.put(commit.getID(), commit);
     }
     
-    /** Returns a list of the stagedFiles. */
-    public ArrayList<String> stagedFiles() {
+    /** Returns the set of the stagedFiles, in the order they were staged. */
+    public Set<String> stagedFiles() {
         return stagedFiles;
     }
     
-    /** Returns a list of the removedFiles. */
-    public ArrayList<String> removedFiles() {
+    /** Returns the set of the removedFiles, in the order they were marked. */
+    public Set<String> removedFiles() {
         return removeFiles;
     }
     
     /** Clears the lists containing the staged files and the files marked for removal. */
     public void clearStagedAndRemove() {
-        stagedFiles.clear();
-        removeFiles.clear();
+        if (!stagedFiles.isEmpty() || !removeFiles.isEmpty()) {
+            stagedFiles.clear();
+            removeFiles.clear();
+            log(Journal.CLEAR_STAGED);
+        }
     }
 
     /** Returns the global count of all the commit objects ever made. */
@@ -95,50 +175,203 @@ public class CommitTree implements Serializable {
     }
 
     public void incrementCount() {
-        globalCount += 1;
+        setCount(globalCount + 1);
     }
 
-    /** Returns the Commit object corresponding to the given global id. 
+    /** Sets the global count of all the commit objects ever made. 
+     *  @param count */
+    public void setCount(int count) {
+        globalCount = count;
+        log(Journal.COUNT, count);
+    }
+
+    /** Returns the Commit object corresponding to the given global id, reading it from the
+     *  store if it is not cached. Returns null if there is no such commit. 
      *  @param id */
     public Commit get(int id) {
-        return commitMap.get(id);
+        Commit commit;
+        synchronized (cache) {
+            commit = cache.get(id);
+        }
+        if (commit == null) {
+            try {
+                commit = store.read(id);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (commit != null) {
+                synchronized (cache) {
+                    cache.put(id, commit);
+                }
+            }
+        }
+        return commit;
     }
 
-    /** Prints out the log of all the commits starting at the current head pointer. */
-    public void logData() {
-        Commit temp = currPointer;
-        while (temp != null) {
-            System.out.println("====\nCommit " + temp.getID() + ".\n" + temp.getDateTime());
-            temp = temp.parent();
+    /** Returns the previous commit of the given commit, or null for the initial commit. 
+     *  @param commit */
+    public Commit parent(Commit commit) {
+        if (commit.parentID() < 0) {
+            return null;
         }
+        return get(commit.parentID());
     }
 
-    /** Prints out the global log of all commits ever made in the commit tree. */
-    public void globalLog() {
-        for (Integer id: commitMap.keySet()) {
-            System.out.println("====\nCommit " + id + ".\n" + commitMap.get(id).getDateTime());
+    /** Prints out the log of the commits starting at the current head pointer, following
+     *  first parents, that the given options choose. The commits are read from the graph
+     *  one at a time, and the walk stops as soon as enough of them are printed.
+     *  @param options LogOptions of the log */
+    public void logData(LogOptions options) {
+        writeLog(IntStream.iterate(currPointer, id -> id >= 0, id -> graph.parent(id)).iterator(),
+                 options);
+    }
+
+    /** Prints out the global log of all commits ever made in the commit tree that the given
+     *  options choose, oldest first, by id or by date and time.
+     *  @param options LogOptions of the log */
+    public void globalLog(LogOptions options) {
+        IntStream ids = IntStream.range(0, graph.size()).filter(id -> graph.contains(id));
+        if (options.dateOrder()) {
+            Integer[] sorted = ids.boxed().toArray(Integer[]::new);
+            Arrays.sort(sorted, (x, y) -> {
+                int cmp = graph.dateTime(x).compareTo(graph.dateTime(y));
+                return cmp != 0 ? cmp : Integer.compare(x, y);
+            });
+            ids = Arrays.stream(sorted).mapToInt(Integer::intValue);
         }
+        writeLog(ids.iterator(), options);
+    }
+
+    /** Writes the log entries of the given commits that the given options choose, in order,
+     *  through one buffered writer. When the options give a path, commits whose path
+     *  filter rules the path out are skipped without being read, and the others are
+     *  checked by looking the path up in their tree and the tree of their first parent. */
+    private void writeLog(PrimitiveIterator.OfInt ids, LogOptions options) {
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8),
+                                        1 << 16);
+        String path = options.path();
+        long hash = path == null ? 0 : PathFilters.hash(path);
+        int skipped = 0;
+        int shown = 0;
+        try {
+            while (shown < options.limit() && ids.hasNext()) {
+                int id = ids.nextInt();
+                if (!options.inRange(graph.dateTime(id))
+                        || (path != null && !changed(id, path, hash))) {
+                    continue;
+                } else if (skipped < options.skip()) {
+                    skipped += 1;
+                    continue;
+                }
+                if (options.oneline()) {
+                    writeLine(out, id);
+                } else {
+                    writeEntry(out, id);
+                }
+                shown += 1;
+            }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Returns true if the commit with the given id changed the file or folder at the given
+     *  path compared to its first parent. */
+    private boolean changed(int id, String path, long hash) throws IOException {
+        if (!filters.mayContain(id, hash)) {
+            return false;
+        }
+        Commit commit = get(id);
+        Commit parent = parent(commit);
+        TreeStore trees = commit.trees();
+        String root = parent == null ? trees.empty() : parent.tree();
+        String folder = path.endsWith("/") ? path : path + "/";
+        return !Objects.equals(trees.lookup(root, path), trees.lookup(commit.tree(), path))
+            || !Objects.equals(trees.lookup(root, folder), trees.lookup(commit.tree(), folder));
+    }
+
+    /** Writes the log entry of the commit with the given id, read from the graph. A merge
+     *  commit also lists its two parents. */
+    private void writeEntry(Writer out, int id) throws IOException {
+        out.write("====\nCommit ");
+        out.write(Integer.toString(id));
+        out.write(".\n");
+        if (graph.secondParent(id) >= 0) {
+            out.write("Merge: " + graph.parent(id) + " " + graph.secondParent(id) + "\n");
+        }
+        out.write(graph.dateTime(id));
+        out.write('\n');
+        out.write(graph.message(id));
+        out.write("\n\n");
+    }
+
+    /** Writes the one line log entry of the commit with the given id, see LogOptions. */
+    private void writeLine(Writer out, int id) throws IOException {
+        out.write(Integer.toString(id));
+        out.write('\t');
+        if (graph.parent(id) < 0) {
+            out.write('-');
+        } else {
+            out.write(Integer.toString(graph.parent(id)));
+            if (graph.secondParent(id) >= 0) {
+                out.write(',');
+                out.write(Integer.toString(graph.secondParent(id)));
+            }
+        }
+        out.write('\t');
+        out.write(graph.dateTime(id));
+        out.write('\t');
+        String message = graph.message(id);
+        for (int i = 0; i < message.length(); i++) {
+            char c = message.charAt(i);
+            if (c == '\\') {
+                out.write("\\\\");
+            } else if (c == '\t') {
+                out.write("\\t");
+            } else if (c == '\n') {
+                out.write("\\n");
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('\n');
     }
     
-    /** Returns a hashmap that maps from string branch names to the Commit objects they point to. */
-    public HashMap<String, Commit> branchMap() {
+    /** Returns a hashmap that maps from string branch names to the ids of the commits they
+     *  point to. */
+    public HashMap<String, Integer> branchMap() {
         return branchMap;
     }
 
+    /** Returns the commit that the branch with the given branchName points to, or null if
+     *  there is no such branch. The current branch points to the current commit.
+     *  @param branchName */
+    public Commit branchCommit(String branchName) {
+        if (branchName.equals(currBranch)) {
+            return currentCommit();
+        }
+        Integer id = branchMap.get(branchName);
+        if (id == null) {
+            return null;
+        }
+        return get(id);
+    }
+
     /** Creates a new branch with the given branchName and adds it to the branchMap. 
      *  @param branchName */
     public void createBranch(String branchName) {
-        Commit newPointer = currPointer;
-        branchMap.put(branchName, newPointer);
+        branchMap.put(branchName, currPointer);
+        log(Journal.CREATE_BRANCH, branchName);
     }
 
     /** Switches the current pointer to point at the the branch specified by given branchName. 
      *  @param branchName */
     public void switchBranch(String branchName) {
-        Commit temp = currPointer;
-        branchMap.put(currBranch, temp);
+        branchMap.put(currBranch, currPointer);
         currPointer = branchMap.get(branchName);
         currBranch = branchName;
+        log(Journal.SWITCH_BRANCH, branchName);
     }
 
     public String currBranch() {
@@ -154,16 +387,80 @@ public class CommitTree implements Serializable {
             System.out.println("A branch with that name does not exist.");
         } else {
             branchMap.remove(branchName);
+            log(Journal.REMOVE_BRANCH, branchName);
         }
     }
 
     /** Prints out all the global Commit IDs that refer to the same commit message. 
      *  @param message */
     public void find(String message) {
-        if (!messageToID.containsKey(message)) {
+        printIds(search(MessageIndex.words(message), message, EXACT));
+    }
+
+    /** Prints out the global Commit IDs of the commits whose messages have all the words
+     *  of the given query, ignoring case. Words are runs of letters, digits, '_' and '-'.
+     *  @param words */
+    public void findWords(String words) {
+        List<String> terms = MessageIndex.words(words);
+        printIds(terms.isEmpty() ? new ArrayList<Integer>() : search(terms, words, WORDS));
+    }
+
+    /** Prints out the global Commit IDs of the commits whose messages contain the given
+     *  text, ignoring case.
+     *  @param text */
+    public void findText(String text) {
+        printIds(search(MessageIndex.trigrams(text), text, TEXT));
+    }
+
+    /** Returns the ids, in order, of the commits whose messages match the given query in
+     *  the given way. The message index narrows the commits down to those with the given
+     *  terms, and each of them is checked against its message. Without terms, as for text
+     *  shorter than three characters, every commit is checked. */
+    private ArrayList<Integer> search(List<String> terms, String query, int mode) {
+        ArrayList<Integer> res = new ArrayList<Integer>();
+        int[] ids;
+        try {
+            if (!search.exists()) {
+                search.rebuild(graph);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (terms.isEmpty()) {
+            ids = new int[graph.size()];
+            for (int id = 0; id < ids.length; id++) {
+                ids[id] = id;
+            }
+        } else {
+            ids = search.candidates(terms);
+        }
+        String lower = query.toLowerCase(Locale.ROOT);
+        List<String> words = mode == WORDS ? terms : null;
+        for (int id: ids) {
+            if (!graph.contains(id)) {
+                continue;
+            }
+            String message = graph.message(id);
+            boolean match;
+            if (mode == EXACT) {
+                match = message.equals(query);
+            } else if (mode == WORDS) {
+                match = MessageIndex.words(message).containsAll(words);
+            } else {
+                match = message.toLowerCase(Locale.ROOT).contains(lower);
+            }
+            if (match) {
+                res.add(id);
+            }
+        }
+        return res;
+    }
+
+    private void printIds(ArrayList<Integer> ids) {
+        if (ids.isEmpty()) {
             System.out.println("Found no commit with that message");
         } else  {
-            for (Integer id: messageToID.get(message)) {
+            for (Integer id: ids) {
                 System.out.println(id);
             }
         }
@@ -172,133 +469,67 @@ public class CommitTree implements Serializable {
     /** Resets the currPointer to point at the given commit. 
      *  @param commit */
     public void resetPointer(Commit commit) {
-        currPointer = commit;
+        currPointer = commit.getID();
+        log(Journal.RESET, currPointer);
     }
 
     /** Finds the split point between the currPointer and the given branchName. 
      *  @param branchName */
     public Commit findSplitPoint(String branchName) {
-        Commit curr = currPointer;
-        Commit given = branchMap.get(branchName);
-        HashSet<Commit> currParents = new HashSet<Commit>();
-        HashSet<Commit> givenParents = new HashSet<Commit>();
-        while (curr != null) {
-            currParents.add(curr);
-            curr = curr.parent();
+        int split = graph.lowestCommonAncestor(currPointer, branchMap.get(branchName));
+        if (split < 0) {
+            return null;
         }
-        while (given != null) {
-            if (currParents.contains(given)) {
-                return given;
-            }
-            givenParents.add(given);
-            given = given.parent();
-        }
-        return null;
+        return get(split);
     }
 
     /** Checks if the commit corresponding to the given branch is in history of current branch 
      *  @param branchName */
     public boolean checkHistory(String branchName) {
-        Commit branchPoint = branchMap.get(branchName);
-        Commit currTemp = currPointer;
-        while (currTemp != null) {
-            if (currTemp == branchPoint) {
-                return true;
-            }    
-            currTemp = currTemp.parent();
-        }
-        return false;
+        return graph.isAncestor(branchMap.get(branchName), currPointer);
     }
 
     /** Checks if the commit corresponding to the current branch is in history of given branch 
      *  @param branchName */
     public boolean checkHistory2(String branchName) {
-        Commit branchTemp = branchMap.get(branchName);
-        while (branchTemp != null) {
-            if (branchTemp == currPointer) {
-                return true;
+        return graph.isAncestor(currPointer, branchMap.get(branchName));
+    }
+
+    /** Returns the ids of the commits on the current branch after the given commit, along
+     *  first parents, oldest first. The walk stops at the first commit that the given
+     *  commit already contains, which is not the commit itself when it was merged in
+     *  through a second parent. A merge whose second parent the given commit contains is
+     *  left out, since it only brings in history the given commit has. The commits
+     *  themselves are not read.
+     *  @param splitCommit Commit in the history of the current commit */
+    public ArrayList<Integer> since(Commit splitCommit) {
+        ArrayList<Integer> ids = new ArrayList<Integer>();
+        int split = splitCommit.getID();
+        for (int id = currPointer; id >= 0 && !graph.isAncestor(id, split);
+                id = graph.parent(id)) {
+            int second = graph.secondParent(id);
+            if (second < 0 || !graph.isAncestor(second, split)) {
+                ids.add(id);
             }
-            branchTemp = branchTemp.parent();
-        }
-        return false;
-    }
-
-    /** Returns the map that maps integer commit ids to commit objects. */
-    public HashMap<Integer, Commit> commitMap() {
-        return commitMap;
-    }
-
-    /** Returns an array list of copies of commit objects starting from the current commit node
-     *  till the passed in splitCommit object. Also takes in a map that makes fileNames to their
-     *  locations. This is used while using rebase.
-     *  @param splitCommit
-     *  @param map */
-    public ArrayList<Commit> findShallowCopy(Commit splitCommit, Map<String, String> map) {
-        Commit currTemp = currPointer;
-        ArrayList<Commit> shallowCopy = new ArrayList<Commit>();
-        while (currTemp != splitCommit) {
-            globalCount += 1;
-            Commit commit = new Commit(currTemp.getMessage(), globalCount, currTemp.fileMap());
-            commit.fileMap().putAll(map);
-            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-            Calendar cal = Calendar.getInstance();
-            String dateTime = dateFormat.format(cal.getTime());
-            commit.setDateTime(dateTime);
-            shallowCopy.add(commit);
-            currTemp = currTemp.parent();
         }
-        return shallowCopy;
-    }
-
-    /** Has the same functionality as the previous method, except that this is called while using
-     *  interactive rebase. Has the option to skip commits, change the commit messages while 
-     *  replaying them, and to simply continue, preserving the functionality of the above mentioned
-     *  method. */
-    public ArrayList<Commit> findShallowCopyI(Commit splitCommit, Map<String, String> map) {
-        Commit currTemp = currPointer;
-        ArrayList<Commit> shallowCopy = new ArrayList<Commit>();
-        String msg = "Would you like to (c)ontinue, (s)kip this commit, or change this commit's (m)essage?";
-        Scanner scanner = new Scanner(System.in);
-        String s = "";
-        int i = 0;
-        while (true) {
-            if (currTemp == splitCommit) {
-                break;
-            }
-            System.out.println("Currently replaying:");
-            System.out.println(currTemp.logData());
-            System.out.println(msg);
-            s = scanner.nextLine();
-            if (s.equals("c")) {
-                globalCount += 1;
-                Commit commit = new Commit(currTemp.getMessage(), globalCount, currTemp.fileMap());
-                commit.fileMap().putAll(map);
-                DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                Calendar cal = Calendar.getInstance();
-                String dateTime = dateFormat.format(cal.getTime());
-                commit.setDateTime(dateTime);
-                shallowCopy.add(commit);
-                currTemp = currTemp.parent();
-                i += 1;
-            } else if (s.equals("s") && i != 0 && currTemp.parent() != splitCommit) {
-                currTemp = currTemp.parent();
-                i += 1;
-            } else if (s.equals("m")) {
-                System.out.println("Please enter a new message for this commit.");
-                String input = scanner.nextLine();
-                globalCount += 1;
-                Commit commit = new Commit(input, globalCount, currTemp.fileMap());
-                commit.fileMap().putAll(map);
-                DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-                Calendar cal = Calendar.getInstance();
-                String dateTime = dateFormat.format(cal.getTime());
-                commit.setDateTime(dateTime);
-                shallowCopy.add(commit);
-                i += 1;
-                currTemp = currTemp.parent();
-            }
+        Collections.reverse(ids);
+        return ids;
+    }
+
+    /** Returns the id of the commit being merged into the current branch, which the next
+     *  commit records as its second parent, or -1 if no merge is in progress. */
+    public int mergeParent() {
+        return mergeParent;
+    }
+
+    /** Sets the id of the commit being merged into the current branch, or -1 to end the
+     *  merge. 
+     *  @param id */
+    public void setMergeParent(int id) {
+        if (mergeParent != id) {
+            mergeParent = id;
+            log(Journal.MERGE, id);
         }
-        return shallowCopy;
     }
 
     /** Changes the current pointer to point to the commit objec that the commit object that the 
@@ -306,6 +537,42 @@ public class CommitTree implements Serializable {
      *  @param branchName */
     public void changePointer(String branchName) {
         currPointer = branchMap.get(branchName);
+        log(Journal.CHANGE_POINTER, branchName);
+    }
+
+    /** Attaches the journal that every later change to this tree is recorded in. 
+     *  @param j */
+    public void setJournal(Journal j) {
+        journal = j;
+    }
+
+    /** Returns the sequence number of the snapshot this tree was last saved as. */
+    public int snapshotSeq() {
+        return snapshotSeq;
+    }
+
+    /** Advances and returns the sequence number, before the tree is saved as a new snapshot. */
+    public int nextSnapshotSeq() {
+        snapshotSeq += 1;
+        return snapshotSeq;
+    }
+
+    private void log(int type, String arg) {
+        if (journal != null) {
+            journal.record(type, arg);
+        }
+    }
+
+    private void log(int type, int arg) {
+        if (journal != null) {
+            journal.record(type, arg);
+        }
+    }
+
+    private void log(int type) {
+        if (journal != null) {
+            journal.record(type);
+        }
     }
     
 }
@@ -0,0 +1,68 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/** Settings of a repository, saved as key=value lines in .kabgit/config. A setting can
+ *  also be given for a single run as a system property named kabgit.<key>, which takes
+ *  precedence over the file.
+ */
+public class Config {
+    /** Number of files checkout, reset, rebase and merge write at the same time. */
+    public static final String THREADS = "checkout.threads";
+    /** How checkout, reset and rebase write files: "copy", the default, or "raw" to store
+     *  new files uncompressed and check large ones out as reflinks, which share their
+     *  blocks with the store until written, on file systems that have them, such as Btrfs
+     *  and XFS, or else with a kernel copy. Hard links are never used: every checked out
+     *  file can be edited without touching the store. */
+    public static final String MODE = "checkout.mode";
+    private File file;
+    private Properties props = new Properties();
+
+    /** Loads the config of the given metadata directory, if it has one.
+     *  @param root String path of the .kabgit folder */
+    public Config(String root) {
+        file = new File(root, "config");
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Returns the value of the given key, or null if it is not set.
+     *  @param key */
+    public String get(String key) {
+        return System.getProperty("kabgit." + key, props.getProperty(key));
+    }
+
+    /** Returns the value of the given key as an int, or def if it is not set or invalid.
+     *  @param key
+     *  @param def */
+    public int getInt(String key, int def) {
+        String value = get(key);
+        if (value == null) {
+            return def;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return def;
+        }
+    }
+
+    /** Sets the given key to value and saves the config.
+     *  @param key
+     *  @param value */
+    public void set(String key, String value) throws IOException {
+        props.setProperty(key, value);
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, null);
+        }
+    }
+}
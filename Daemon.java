@@ -0,0 +1,318 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Long running process that keeps a loaded KabGit, with its commit tree and caches, and
+ *  runs the commands of clients that connect to .kabgit/daemon.sock, so that a command
+ *  costs neither the start of a JVM nor loading the repository. It is started with
+ *  "kabgit daemon" from the root of the repository and stopped with "kabgit daemon stop".
+ *  While it runs, every kabgit command started in the same folder is sent to it.
+ *  Commands that only read the repository, log, global-log, status and find, run at the
+ *  same time as each other. Every other command runs alone and is saved before the next
+ *  one starts. If the files of the repository were changed by another process since the
+ *  daemon last saw them, it loads the repository again before the next command.
+ *  The daemon also watches the working directory with a TreeWatcher, so status and add -A
+ *  only look at the paths that changed.
+ *  Protocol: the client sends the number of arguments and then each argument, in UTF-8,
+ *  each followed by a zero byte, and then the standard input of the command until it
+ *  shuts down its side. The daemon writes the output of the command and closes the
+ *  connection. Any client that can do that works, for example
+ *      printf '2\0log\0--oneline\0' | socat - UNIX-CONNECT:.kabgit/daemon.sock
+ */
+public class Daemon {
+    private static final int HANDLERS = 8;
+    private static final ThreadLocal<OutputStream> TARGET = new ThreadLocal<OutputStream>();
+    private File root;
+    private Path socket;
+    private ServerSocketChannel server;
+    private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private KabGit git;
+    private String stamp;
+    private TreeWatcher watcher;
+
+    /** Creates a daemon for the repository with the given metadata directory.
+     *  @param r String path of the .kabgit folder */
+    public Daemon(String r) {
+        root = new File(r);
+        socket = new File(root, "daemon.sock").toPath();
+    }
+
+    /** Sends the given command to the daemon of the repository with the given metadata
+     *  directory, copies the standard input to it and its output to the standard output,
+     *  and returns true, or returns false if no daemon is running.
+     *  @param root String path of the .kabgit folder
+     *  @param args String[] command and its arguments */
+    public static boolean forward(String root, String[] args) {
+        Path path = new File(root, "daemon.sock").toPath();
+        if (!Files.exists(path)) {
+            return false;
+        }
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(path));
+        } catch (IOException e) {
+            return false;
+        }
+        try (SocketChannel ch = channel) {
+            ByteArrayOutputStream request = new ByteArrayOutputStream();
+            request.write((args.length + "\0").getBytes(StandardCharsets.UTF_8));
+            for (String arg: args) {
+                request.write((arg + "\0").getBytes(StandardCharsets.UTF_8));
+            }
+            writeFully(ch, ByteBuffer.wrap(request.toByteArray()));
+            Thread stdin = new Thread(() -> {
+                byte[] buf = new byte[8192];
+                try {
+                    int n;
+                    while ((n = System.in.read(buf)) > 0) {
+                        writeFully(ch, ByteBuffer.wrap(buf, 0, n));
+                    }
+                    ch.shutdownOutput();
+                } catch (IOException e) {
+                    // the daemon closed the connection, so it needs no more input
+                }
+            });
+            stdin.setDaemon(true);
+            stdin.start();
+            ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+            while (ch.read(buf) >= 0) {
+                System.out.write(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+            System.out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return true;
+    }
+
+    private static void writeFully(SocketChannel ch, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            ch.write(buf);
+        }
+    }
+
+    /** Listens for commands until a client asks the daemon to stop. */
+    public void serve() {
+        if (!root.isDirectory()) {
+            System.out.println("Not a kabgit repository.");
+            return;
+        } else if (Files.exists(socket)) {
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+                System.out.println("A daemon is already running.");
+                return;
+            } catch (IOException e) {
+                socket.toFile().delete();
+            }
+        }
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        System.setOut(new PrintStream(new Routed(out)));
+        System.setErr(new PrintStream(new Routed(err)));
+        ExecutorService pool = Executors.newFixedThreadPool(HANDLERS);
+        try {
+            server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+            server.bind(UnixDomainSocketAddress.of(socket));
+            try {
+                watcher = new TreeWatcher(root.toPath().toAbsolutePath().normalize().getParent());
+            } catch (IOException e) {
+                out.println("Cannot watch the working directory, status will scan it.");
+            }
+            out.println("Listening on " + socket + ".");
+            while (true) {
+                SocketChannel client = server.accept();
+                pool.submit(() -> handle(client));
+            }
+        } catch (ClosedChannelException e) {
+            out.println("Daemon stopped.");
+        } catch (IOException e) {
+            e.printStackTrace(err);
+        } finally {
+            pool.shutdown();
+            socket.toFile().delete();
+            System.setOut(out);
+            System.setErr(err);
+        }
+    }
+
+    /** Reads one command from the given client, runs it with its output sent back to the
+     *  client, and closes the connection. */
+    private void handle(SocketChannel client) {
+        try (SocketChannel ch = client) {
+            InputStream in = new BufferedInputStream(Channels.newInputStream(ch));
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(ch), 1 << 16);
+            TARGET.set(out);
+            try {
+                String count = readArg(in);
+                if (count == null) {
+                    return;
+                }
+                String[] args = new String[Integer.parseInt(count)];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = readArg(in);
+                    if (args[i] == null) {
+                        throw new IOException("Request ended early.");
+                    }
+                }
+                execute(args, in);
+            } catch (NumberFormatException e) {
+                System.out.println("Malformed request.");
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            } finally {
+                System.out.flush();
+                System.err.flush();
+                TARGET.remove();
+                out.flush();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Runs the given command, alongside other read only commands if it is one, and alone
+     *  otherwise. */
+    private void execute(String[] args, InputStream in) throws IOException {
+        String cmd = args.length > 0 ? args[0] : "";
+        if (cmd.equals("daemon")) {
+            if (args.length == 2 && args[1].equals("stop")) {
+                lock.writeLock().lock();
+                try {
+                    System.out.println("Stopping the daemon.");
+                    server.close();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } else {
+                System.out.println("A daemon is already running.");
+            }
+            return;
+        }
+        boolean readOnly = cmd.equals("log") || cmd.equals("global-log")
+            || cmd.equals("status") || cmd.equals("find");
+        if (readOnly) {
+            lock.readLock().lock();
+            try {
+                if (git == null || !stamp().equals(stamp)) {
+                    lock.readLock().unlock();
+                    lock.writeLock().lock();
+                    try {
+                        refresh();
+                    } finally {
+                        lock.readLock().lock();
+                        lock.writeLock().unlock();
+                    }
+                }
+                git.run(args);
+            } finally {
+                lock.readLock().unlock();
+            }
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            refresh();
+            git.setInput(in);
+            git.run(args);
+            git.saveTree();
+            if (cmd.equals("config") || cmd.equals("init")) {
+                git = null;
+                stamp = null;
+            } else {
+                stamp = stamp();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Loads the repository again if it is not loaded or changed on disk since it was.
+     *  Must hold the write lock. */
+    private void refresh() throws IOException {
+        String current = stamp();
+        if (git == null || !current.equals(stamp)) {
+            git = new KabGit();
+            git.loadTree();
+            git.setWatcher(watcher);
+            stamp = current;
+        }
+    }
+
+    /** Returns the sizes and modification times of the files that every change to the
+     *  repository writes. */
+    private String stamp() throws IOException {
+        StringBuilder res = new StringBuilder();
+        String[] files = {"CommitTree.ser", "journal", "commits/graph", "index", "config"};
+        for (String name: files) {
+            Path path = new File(root, name).toPath();
+            if (Files.exists(path)) {
+                res.append(Files.size(path)).append(':')
+                   .append(Files.getLastModifiedTime(path).toMillis());
+            }
+            res.append(';');
+        }
+        return res.toString();
+    }
+
+    /** Reads one argument of a request, or returns null if the request ended first. */
+    private static String readArg(InputStream in) throws IOException {
+        ByteArrayOutputStream arg = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) > 0) {
+            arg.write(b);
+        }
+        if (b < 0) {
+            return null;
+        }
+        return new String(arg.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /** Output stream that writes to the client of the command running on the current
+     *  thread, or to the daemon's own output on other threads. */
+    private static class Routed extends OutputStream {
+        private OutputStream fallback;
+
+        Routed(OutputStream f) {
+            fallback = f;
+        }
+
+        private OutputStream target() {
+            OutputStream out = TARGET.get();
+            return out == null ? fallback : out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            target().write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            target().write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            target().flush();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/** Encodes a file version as a stream of copy and insert instructions against a previous
+ *  version of the same file, in the style of xdelta. The base is cut into fixed size blocks
+ *  that are indexed by a rolling hash. The target is then scanned one byte at a time, and
+ *  every stretch that matches a block of the base is extended as far as it goes and written
+ *  as a copy of the base, while everything else is written as literal inserts.
+ *  Delta layout: target length, then instructions. A COPY is the byte 1 followed by the
+ *  base offset and the length, an INSERT is the byte 0 followed by the length and the
+ *  literal bytes. All numbers are written as unsigned varints.
+ */
+public class Delta {
+    private static final int BLOCK = 16;
+    private static final int PRIME = 31;
+    private static final int INSERT = 0;
+    private static final int COPY = 1;
+
+    /** Returns the delta that rebuilds target from base.
+     *  @param base byte array of the previous version
+     *  @param target byte array of the new version */
+    public static byte[] encode(byte[] base, byte[] target) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(target.length / 4 + 16);
+        writeVarint(out, target.length);
+        HashMap<Integer, Integer> blocks = new HashMap<Integer, Integer>();
+        for (int i = 0; i + BLOCK <= base.length; i += BLOCK) {
+            blocks.putIfAbsent(hash(base, i), i);
+        }
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) {
+            power *= PRIME;
+        }
+        int pending = 0;
+        int i = 0;
+        int h = target.length >= BLOCK ? hash(target, 0) : 0;
+        while (i + BLOCK <= target.length) {
+            Integer offset = blocks.get(h);
+            if (offset != null && matches(base, offset, target, i)) {
+                int start = offset;
+                int back = 0;
+                while (back < i - pending && start - back > 0
+                        && base[start - back - 1] == target[i - back - 1]) {
+                    back++;
+                }
+                int length = back + BLOCK;
+                while (start + length - back < base.length && i + length - back < target.length
+                        && base[start + length - back] == target[i + length - back]) {
+                    length++;
+                }
+                writeInsert(out, target, pending, i - back);
+                writeCopy(out, start - back, length);
+                i = i - back + length;
+                pending = i;
+                if (i + BLOCK <= target.length) {
+                    h = hash(target, i);
+                }
+                continue;
+            }
+            if (i + BLOCK < target.length) {
+                h = (h - target[i] * power) * PRIME + target[i + BLOCK];
+            }
+            i++;
+        }
+        writeInsert(out, target, pending, target.length);
+        return out.toByteArray();
+    }
+
+    /** Rebuilds the target that the given delta was encoded from.
+     *  @param base byte array of the previous version
+     *  @param delta byte array of the instructions */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        int[] pos = new int[1];
+        byte[] target = new byte[readVarint(delta, pos)];
+        int written = 0;
+        while (pos[0] < delta.length) {
+            int op = delta[pos[0]++];
+            if (op == COPY) {
+                int offset = readVarint(delta, pos);
+                int length = readVarint(delta, pos);
+                System.arraycopy(base, offset, target, written, length);
+                written += length;
+            } else if (op == INSERT) {
+                int length = readVarint(delta, pos);
+                System.arraycopy(delta, pos[0], target, written, length);
+                pos[0] += length;
+                written += length;
+            } else {
+                throw new IOException("Corrupt delta instruction " + op);
+            }
+        }
+        if (written != target.length) {
+            throw new IOException("Corrupt delta, expected " + target.length + " bytes.");
+        }
+        return target;
+    }
+
+    private static int hash(byte[] data, int start) {
+        int h = 0;
+        for (int i = start; i < start + BLOCK; i++) {
+            h = h * PRIME + data[i];
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] base, int offset, byte[] target, int start) {
+        for (int i = 0; i < BLOCK; i++) {
+            if (base[offset + i] != target[start + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeInsert(ByteArrayOutputStream out, byte[] target, int from, int to) {
+        if (to > from) {
+            out.write(INSERT);
+            writeVarint(out, to - from);
+            out.write(target, from, to - from);
+        }
+    }
+
+    private static void writeCopy(ByteArrayOutputStream out, int offset, int length) {
+        out.write(COPY);
+        writeVarint(out, offset);
+        writeVarint(out, length);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarint(byte[] data, int[] pos) {
+        int value = 0;
+        int shift = 0;
+        while (true) {
+            int b = data[pos[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+        }
+    }
+}
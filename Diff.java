@@ -0,0 +1,497 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/** Line by line comparison of two files, written out in the unified diff format.
+ *  Both files are read as streams of lines, and every distinct line is interned to an int,
+ *  so the comparison itself only ever compares ints and each distinct line is kept once.
+ *  Lines keep their line break, so a last line without one differs from the same line
+ *  with one. The shortest edit script is found with Myers' algorithm in its linear space
+ *  form: after the common head and tail are cut off, the middle snake of the remaining
+ *  lines is found by searching forwards and backwards at once, and both sides of it are
+ *  compared in the same way. This takes O((N + M) D) time for N and M lines and D edits,
+ *  and O(N + M) space. Like GNU diff, a search that needs more than about the square root
+ *  of N + M edits, and at least MAX_COST, gives up on finding the shortest script and
+ *  splits at the point the forward search got furthest, so files that share almost
+ *  nothing still compare quickly. A file with a NUL character is treated as binary.
+ *  The same comparison drives a three-way merge of two versions of a file that share a
+ *  base version, as in diff3. A merge reads its files as ISO-8859-1, one char per byte,
+ *  so that the merged file keeps the exact bytes of its inputs whatever their encoding.
+ */
+public class Diff {
+    /** Number of unchanged lines shown around each change. */
+    public static final int CONTEXT = 3;
+    private static final int MAX_COST = 4096;
+    private static final int EQUAL = 0;
+    private static final int DELETE = 1;
+    private static final int INSERT = 2;
+    private HashMap<String, Integer> ids = new HashMap<String, Integer>();
+    private ArrayList<String> lines = new ArrayList<String>();
+    private boolean binary = false;
+    private Charset charset = StandardCharsets.UTF_8;
+    private int[] a;
+    private int[] b;
+    private boolean[] deleted;
+    private boolean[] inserted;
+    private int maxCost;
+
+    /** Writes the differences between the contents of the streams from and to, in the
+     *  unified diff format, and closes both streams. Nothing is written if they are equal.
+     *  @param fromName String name of the old file, like a/file or /dev/null
+     *  @param from InputStream over the old contents
+     *  @param toName String name of the new file
+     *  @param to InputStream over the new contents
+     *  @param out Writer the diff is written to */
+    public static void write(String fromName, InputStream from, String toName, InputStream to,
+                             Writer out) throws IOException {
+        Diff diff = new Diff();
+        try {
+            diff.a = diff.read(from);
+            diff.b = diff.read(to);
+        } finally {
+            from.close();
+            to.close();
+        }
+        if (Arrays.equals(diff.a, diff.b)) {
+            return;
+        }
+        if (diff.binary) {
+            out.write("Binary files " + fromName + " and " + toName + " differ\n");
+            return;
+        }
+        diff.compare(diff.a, diff.b);
+        out.write("--- " + fromName + "\n");
+        out.write("+++ " + toName + "\n");
+        diff.writeHunks(out);
+    }
+
+    /** Merges the changes that ours and theirs each made to base, and closes all three
+     *  streams. Changes to separate parts of base are combined. Where both sides changed the
+     *  same or adjoining lines of base differently, both versions are written between
+     *  conflict markers labelled with the given names. Returns null if any of the files is
+     *  binary.
+     *  @param base InputStream over the common ancestor version
+     *  @param ours InputStream over the version on the current branch
+     *  @param theirs InputStream over the version being merged in
+     *  @param oursName String label of the current branch
+     *  @param theirsName String label of the branch being merged in */
+    public static Merged merge(InputStream base, InputStream ours, InputStream theirs,
+                               String oursName, String theirsName) throws IOException {
+        Diff diff = new Diff();
+        diff.charset = StandardCharsets.ISO_8859_1;
+        oursName = diff.decode(oursName);
+        theirsName = diff.decode(theirsName);
+        int[] o;
+        int[] t;
+        int[] b;
+        try {
+            b = diff.read(base);
+            o = diff.read(ours);
+            t = diff.read(theirs);
+        } finally {
+            base.close();
+            ours.close();
+            theirs.close();
+        }
+        if (diff.binary) {
+            return null;
+        }
+        diff.compare(b, o);
+        ArrayList<int[]> oursHunks = diff.hunks();
+        diff.compare(b, t);
+        ArrayList<int[]> theirsHunks = diff.hunks();
+        Merged res = new Merged();
+        StringBuilder text = new StringBuilder();
+        int position = 0;
+        int oursShift = 0;
+        int theirsShift = 0;
+        int i = 0;
+        int j = 0;
+        while (i < oursHunks.size() || j < theirsHunks.size()) {
+            int start;
+            if (j == theirsHunks.size()
+                    || (i < oursHunks.size() && oursHunks.get(i)[0] <= theirsHunks.get(j)[0])) {
+                start = oursHunks.get(i)[0];
+            } else {
+                start = theirsHunks.get(j)[0];
+            }
+            int end = start;
+            int oursEnd = i;
+            int theirsEnd = j;
+            boolean grown = true;
+            while (grown) {
+                grown = false;
+                if (oursEnd < oursHunks.size() && oursHunks.get(oursEnd)[0] <= end) {
+                    end = Math.max(end, oursHunks.get(oursEnd)[1]);
+                    oursEnd += 1;
+                    grown = true;
+                }
+                if (theirsEnd < theirsHunks.size() && theirsHunks.get(theirsEnd)[0] <= end) {
+                    end = Math.max(end, theirsHunks.get(theirsEnd)[1]);
+                    theirsEnd += 1;
+                    grown = true;
+                }
+            }
+            diff.append(text, b, position, start);
+            int oursGrowth = growth(oursHunks, i, oursEnd);
+            int theirsGrowth = growth(theirsHunks, j, theirsEnd);
+            int oursStart = start + oursShift;
+            int oursStop = end + oursShift + oursGrowth;
+            int theirsStart = start + theirsShift;
+            int theirsStop = end + theirsShift + theirsGrowth;
+            if (theirsEnd == j) {
+                diff.append(text, o, oursStart, oursStop);
+            } else if (oursEnd == i || Arrays.equals(Arrays.copyOfRange(o, oursStart, oursStop),
+                                                     Arrays.copyOfRange(t, theirsStart, theirsStop))) {
+                diff.append(text, t, theirsStart, theirsStop);
+            } else {
+                res.conflict = true;
+                text.append("<<<<<<< ").append(oursName).append('\n');
+                diff.append(text, o, oursStart, oursStop);
+                endLine(text);
+                text.append("=======\n");
+                diff.append(text, t, theirsStart, theirsStop);
+                endLine(text);
+                text.append(">>>>>>> ").append(theirsName).append('\n');
+            }
+            oursShift += oursGrowth;
+            theirsShift += theirsGrowth;
+            position = end;
+            i = oursEnd;
+            j = theirsEnd;
+        }
+        diff.append(text, b, position, b.length);
+        res.content = text.toString().getBytes(StandardCharsets.ISO_8859_1);
+        return res;
+    }
+
+    /** Returns how many more lines the given hunks have on their new side than on their
+     *  old side. */
+    private static int growth(ArrayList<int[]> hunks, int from, int to) {
+        int res = 0;
+        for (int k = from; k < to; k++) {
+            int[] hunk = hunks.get(k);
+            res += (hunk[3] - hunk[2]) - (hunk[1] - hunk[0]);
+        }
+        return res;
+    }
+
+    private void append(StringBuilder text, int[] ids, int from, int to) {
+        for (int k = from; k < to; k++) {
+            text.append(lines.get(ids[k]));
+        }
+    }
+
+    private static void endLine(StringBuilder text) {
+        if (text.length() > 0 && text.charAt(text.length() - 1) != '\n') {
+            text.append('\n');
+        }
+    }
+
+    /** Returns the chars that the UTF-8 bytes of the given name are read as. */
+    private String decode(String name) {
+        return new String(name.getBytes(StandardCharsets.UTF_8), charset);
+    }
+
+    /** Reads the lines of the given stream and returns their interned ids. */
+    private int[] read(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(in, charset), 1 << 16);
+        int[] res = new int[1024];
+        int count = 0;
+        StringBuilder line = new StringBuilder();
+        char[] buffer = new char[1 << 16];
+        int n;
+        while ((n = reader.read(buffer)) > 0) {
+            int start = 0;
+            for (int i = 0; i < n; i++) {
+                if (buffer[i] == '\n') {
+                    line.append(buffer, start, i + 1 - start);
+                    if (count == res.length) {
+                        res = Arrays.copyOf(res, 2 * count);
+                    }
+                    res[count++] = intern(line.toString());
+                    line.setLength(0);
+                    start = i + 1;
+                } else if (buffer[i] == 0) {
+                    binary = true;
+                }
+            }
+            line.append(buffer, start, n - start);
+        }
+        if (line.length() > 0) {
+            if (count == res.length) {
+                res = Arrays.copyOf(res, count + 1);
+            }
+            res[count++] = intern(line.toString());
+        }
+        return Arrays.copyOf(res, count);
+    }
+
+    private int intern(String line) {
+        Integer id = ids.get(line);
+        if (id == null) {
+            id = lines.size();
+            ids.put(line, id);
+            lines.add(line);
+        }
+        return id;
+    }
+
+    /** Finds a shortest edit script from x to y, marking the lines of x it deletes and the
+     *  lines of y it inserts. */
+    private void compare(int[] x, int[] y) {
+        a = x;
+        b = y;
+        maxCost = 1;
+        for (int n = a.length + b.length + 3; n != 0; n >>= 2) {
+            maxCost <<= 1;
+        }
+        maxCost = Math.max(MAX_COST, maxCost);
+        deleted = new boolean[a.length];
+        inserted = new boolean[b.length];
+        compare(0, a.length, 0, b.length);
+    }
+
+    /** Returns the changed regions found by the last comparison, in order, each as the
+     *  start and end of its lines in a followed by the start and end of its lines in b. */
+    private ArrayList<int[]> hunks() {
+        ArrayList<int[]> res = new ArrayList<int[]>();
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            if ((i < a.length && deleted[i]) || (j < b.length && inserted[j])) {
+                int aStart = i;
+                int bStart = j;
+                while (i < a.length && deleted[i]) {
+                    i += 1;
+                }
+                while (j < b.length && inserted[j]) {
+                    j += 1;
+                }
+                res.add(new int[] {aStart, i, bStart, j});
+            } else {
+                i += 1;
+                j += 1;
+            }
+        }
+        return res;
+    }
+
+    /** Marks the lines of a[aLo, aHi) that are deleted and of b[bLo, bHi) that are inserted
+     *  by a shortest edit script between them. */
+    private void compare(int aLo, int aHi, int bLo, int bHi) {
+        while (aLo < aHi && bLo < bHi && a[aLo] == b[bLo]) {
+            aLo += 1;
+            bLo += 1;
+        }
+        while (aLo < aHi && bLo < bHi && a[aHi - 1] == b[bHi - 1]) {
+            aHi -= 1;
+            bHi -= 1;
+        }
+        if (aLo == aHi || bLo == bHi) {
+            Arrays.fill(deleted, aLo, aHi, true);
+            Arrays.fill(inserted, bLo, bHi, true);
+            return;
+        }
+        int n = aHi - aLo;
+        int m = bHi - bLo;
+        int max = (n + m + 1) / 2;
+        int offset = max;
+        int[] forward = new int[2 * max + 2];
+        int[] backward = new int[2 * max + 2];
+        Arrays.fill(forward, -1);
+        Arrays.fill(backward, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean odd = (delta & 1) != 0;
+        int forwardStart = 0;
+        int forwardEnd = 0;
+        int backwardStart = 0;
+        int backwardEnd = 0;
+        for (int d = 0; d < max; d++) {
+            for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                int x;
+                if (k == -d || (k != d && forward[offset + k - 1] < forward[offset + k + 1])) {
+                    x = forward[offset + k + 1];
+                } else {
+                    x = forward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aLo + x] == b[bLo + y]) {
+                    x += 1;
+                    y += 1;
+                }
+                forward[offset + k] = x;
+                int c = offset + delta - k;
+                if (x > n) {
+                    forwardEnd += 2;
+                } else if (y > m) {
+                    forwardStart += 2;
+                } else if (odd && c >= 0 && c < backward.length && backward[c] != -1
+                        && x >= n - backward[c]) {
+                    compare(aLo, aLo + x, bLo, bLo + y);
+                    compare(aLo + x, aHi, bLo + y, bHi);
+                    return;
+                }
+            }
+            for (int k = -d + backwardStart; k <= d - backwardEnd; k += 2) {
+                int x;
+                if (k == -d || (k != d && backward[offset + k - 1] < backward[offset + k + 1])) {
+                    x = backward[offset + k + 1];
+                } else {
+                    x = backward[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[aHi - x - 1] == b[bHi - y - 1]) {
+                    x += 1;
+                    y += 1;
+                }
+                backward[offset + k] = x;
+                int c = offset + delta - k;
+                if (x > n) {
+                    backwardEnd += 2;
+                } else if (y > m) {
+                    backwardStart += 2;
+                } else if (!odd && c >= 0 && c < forward.length && forward[c] != -1
+                        && forward[c] >= n - x) {
+                    int fx = forward[c];
+                    int fy = fx - (c - offset);
+                    compare(aLo, aLo + fx, bLo, bLo + fy);
+                    compare(aLo + fx, aHi, bLo + fy, bHi);
+                    return;
+                }
+            }
+            if (d >= maxCost) {
+                int best = -1;
+                int bestX = 0;
+                for (int k = -d + forwardStart; k <= d - forwardEnd; k += 2) {
+                    int x = forward[offset + k];
+                    if (x <= n && x - k <= m && x - k >= 0 && 2 * x - k > best) {
+                        best = 2 * x - k;
+                        bestX = x;
+                    }
+                }
+                int bestY = best - bestX;
+                if (best > 0 && best < n + m) {
+                    compare(aLo, aLo + bestX, bLo, bLo + bestY);
+                    compare(aLo + bestX, aHi, bLo + bestY, bHi);
+                    return;
+                }
+            }
+        }
+        Arrays.fill(deleted, aLo, aHi, true);
+        Arrays.fill(inserted, bLo, bHi, true);
+    }
+
+    /** Writes the marked changes as hunks, each with up to CONTEXT unchanged lines around
+     *  it. Changes that are close enough to share context are written as one hunk. */
+    private void writeHunks(Writer out) throws IOException {
+        int size = a.length + b.length;
+        int[] types = new int[size];
+        int[] aLines = new int[size];
+        int[] bLines = new int[size];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length || j < b.length) {
+            aLines[count] = i;
+            bLines[count] = j;
+            if (i < a.length && deleted[i]) {
+                types[count] = DELETE;
+                i += 1;
+            } else if (j < b.length && inserted[j]) {
+                types[count] = INSERT;
+                j += 1;
+            } else {
+                types[count] = EQUAL;
+                i += 1;
+                j += 1;
+            }
+            count += 1;
+        }
+        int op = 0;
+        while (op < count) {
+            while (op < count && types[op] == EQUAL) {
+                op += 1;
+            }
+            if (op == count) {
+                break;
+            }
+            int start = Math.max(0, op - CONTEXT);
+            int end = op;
+            int equal = 0;
+            while (end < count && equal <= 2 * CONTEXT) {
+                equal = types[end] == EQUAL ? equal + 1 : 0;
+                end += 1;
+            }
+            end = Math.min(count, end - equal + CONTEXT);
+            writeHunk(out, types, aLines, bLines, start, end);
+            op = end;
+        }
+    }
+
+    private void writeHunk(Writer out, int[] types, int[] aLines, int[] bLines, int start,
+                           int end) throws IOException {
+        int aCount = 0;
+        int bCount = 0;
+        for (int op = start; op < end; op++) {
+            if (types[op] != INSERT) {
+                aCount += 1;
+            }
+            if (types[op] != DELETE) {
+                bCount += 1;
+            }
+        }
+        out.write("@@ -" + range(aLines[start], aCount) + " +" + range(bLines[start], bCount)
+                  + " @@\n");
+        for (int op = start; op < end; op++) {
+            if (types[op] == DELETE) {
+                writeLine(out, '-', a[aLines[op]]);
+            } else if (types[op] == INSERT) {
+                writeLine(out, '+', b[bLines[op]]);
+            } else {
+                writeLine(out, ' ', a[aLines[op]]);
+            }
+        }
+    }
+
+    private static String range(int line, int count) {
+        if (count == 0) {
+            return line + ",0";
+        }
+        return (line + 1) + "," + count;
+    }
+
+    private void writeLine(Writer out, char prefix, int id) throws IOException {
+        String line = lines.get(id);
+        out.write(prefix);
+        out.write(line);
+        if (!line.endsWith("\n")) {
+            out.write("\n\\ No newline at end of file\n");
+        }
+    }
+
+    /** Content of a three-way merge, and whether it has conflicts. */
+    public static class Merged {
+        private byte[] content;
+        private boolean conflict = false;
+
+        /** Returns the bytes of the merged file. */
+        public byte[] content() {
+            return content;
+        }
+
+        public boolean conflict() {
+            return conflict;
+        }
+    }
+}
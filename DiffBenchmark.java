@@ -0,0 +1,62 @@
+import java.io.ByteArrayInputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/** Times Diff on generated files, in the process and after a warm-up run: a typical
+ *  case of two 4 MB files, 150,000 lines of about 30 bytes with 1% of them changed, and
+ *  the worst case, 100,000 lines drawn from only four different lines, where almost every
+ *  line matches many others. Prints the size of each input, how long the diff took and how
+ *  many lines of output it wrote. Run it with
+ *      java DiffBenchmark [number of runs]
+ */
+public class DiffBenchmark {
+    private static final int RUNS = 3;
+
+    public static void main(String[] args) throws Exception {
+        int runs = args.length > 0 ? Integer.parseInt(args[0]) : RUNS;
+        Random random = new Random(3);
+
+        StringBuilder from = new StringBuilder();
+        StringBuilder to = new StringBuilder();
+        for (int i = 0; i < 150000; i++) {
+            String line = "line " + i + " " + Long.toHexString(random.nextLong()) + "\n";
+            from.append(line);
+            if (random.nextInt(100) == 0) {
+                to.append("changed ").append(line);
+            } else {
+                to.append(line);
+            }
+        }
+        time("150,000 lines, 1% changed", from.toString(), to.toString(), runs);
+
+        String[] symbols = {"a\n", "b\n", "c\n", "d\n"};
+        from.setLength(0);
+        to.setLength(0);
+        for (int i = 0; i < 100000; i++) {
+            from.append(symbols[random.nextInt(4)]);
+            to.append(symbols[random.nextInt(4)]);
+        }
+        time("100,000 lines of 4 symbols", from.toString(), to.toString(), runs);
+    }
+
+    private static void time(String name, String from, String to, int runs) throws Exception {
+        byte[] a = from.getBytes(StandardCharsets.UTF_8);
+        byte[] b = to.getBytes(StandardCharsets.UTF_8);
+        StringBuilder times = new StringBuilder();
+        int lines = 0;
+        for (int run = 0; run <= runs; run++) {
+            StringWriter out = new StringWriter();
+            long start = System.nanoTime();
+            Diff.write("a/file", new ByteArrayInputStream(a), "b/file", new ByteArrayInputStream(b),
+                       out);
+            long millis = Bench.millis(start);
+            if (run > 0) {
+                times.append(' ').append(millis);
+            }
+            lines = out.toString().split("\n", -1).length - 1;
+        }
+        System.out.printf("%s (%.1f MB and %.1f MB): %d lines of output,%s ms%n", name,
+                          a.length / 1e6, b.length / 1e6, lines, times);
+    }
+}
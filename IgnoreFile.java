@@ -0,0 +1,114 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Patterns of untracked files that add and status leave alone, read from the file
+ *  .kabgitignore at the root of the working directory, one per line, like a .gitignore:
+ *      # comment       lines starting with # and blank lines are skipped
+ *      *.class         a pattern without a slash matches a file or folder name anywhere
+ *      /build          a pattern with a slash matches the path from the root
+ *      out/            a pattern ending in a slash only matches folders
+ *      !keep.class     a pattern starting with ! takes a match back
+ *  Patterns are globs, where * and ? do not match a slash and ** does. The last pattern
+ *  that matches a path decides, and everything under an ignored folder is ignored.
+ *  Files that are tracked, staged or named on the command line are never ignored.
+ */
+public class IgnoreFile {
+    public static final String NAME = ".kabgitignore";
+    private List<Rule> rules = new ArrayList<Rule>();
+
+    /** Returns the patterns in the ignore file of the given working directory, or no
+     *  patterns if it has none.
+     *  @param root File root of the working directory */
+    public static IgnoreFile load(File root) {
+        IgnoreFile ignore = new IgnoreFile();
+        File file = new File(root, NAME);
+        if (!file.isFile()) {
+            return ignore;
+        }
+        try {
+            for (String line: Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+                ignore.addPattern(line);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return ignore;
+    }
+
+    private void addPattern(String line) {
+        String pattern = line.strip();
+        if (pattern.isEmpty() || pattern.startsWith("#")) {
+            return;
+        }
+        Rule rule = new Rule();
+        if (pattern.startsWith("!")) {
+            rule.negated = true;
+            pattern = pattern.substring(1);
+        }
+        if (pattern.endsWith("/")) {
+            rule.folderOnly = true;
+            pattern = pattern.substring(0, pattern.length() - 1);
+        }
+        rule.anchored = pattern.contains("/");
+        if (pattern.startsWith("/")) {
+            pattern = pattern.substring(1);
+        }
+        if (pattern.isEmpty()) {
+            return;
+        }
+        rule.matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+        rules.add(rule);
+    }
+
+    /** Returns true if there are no patterns. */
+    public boolean isEmpty() {
+        return rules.isEmpty();
+    }
+
+    /** Returns true if the file or folder at the given path is ignored by the patterns
+     *  themselves, without looking at the folders above it.
+     *  @param path String path relative to the working directory, with '/' separators
+     *  @param folder boolean true if the path is a folder */
+    public boolean matches(String path, boolean folder) {
+        boolean ignored = false;
+        String name = path.substring(path.lastIndexOf('/') + 1);
+        for (Rule rule: rules) {
+            if (rule.folderOnly && !folder) {
+                continue;
+            }
+            if (rule.matcher.matches(Paths.get(rule.anchored ? path : name))) {
+                ignored = !rule.negated;
+            }
+        }
+        return ignored;
+    }
+
+    /** Returns true if the file at the given path, or a folder above it, is ignored.
+     *  @param path String path of a file relative to the working directory */
+    public boolean ignores(String path) {
+        if (rules.isEmpty()) {
+            return false;
+        }
+        for (int i = path.indexOf('/'); i >= 0; i = path.indexOf('/', i + 1)) {
+            if (matches(path.substring(0, i), true)) {
+                return true;
+            }
+        }
+        return matches(path, false);
+    }
+
+    /** One line of the ignore file. */
+    private static class Rule {
+        private PathMatcher matcher;
+        private boolean negated = false;
+        private boolean folderOnly = false;
+        private boolean anchored = false;
+    }
+}
@@ -0,0 +1,229 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** Append-only log of the changes made to a CommitTree since its last snapshot in
+ *  CommitTree.ser. Every new commit, branch move and staging change is written as one small
+ *  record, so that saving after a command costs as much as the change itself and not as
+ *  much as the whole history. Loading replays the records on top of the snapshot. The
+ *  commits themselves are saved in the CommitStore, so a new commit is recorded by its id.
+ *  The journal starts with the sequence number of the snapshot it belongs to, so a journal
+ *  left over from before a compaction is never replayed on top of the newer snapshot.
+ */
+public class Journal {
+    static final int STAGE = 1;
+    static final int UNSTAGE = 2;
+    static final int MARK_REMOVAL = 3;
+    static final int UNMARK_REMOVAL = 4;
+    static final int CLEAR_STAGED = 5;
+    static final int COUNT = 6;
+    static final int ADD_COMMIT = 7;
+    static final int CREATE_BRANCH = 8;
+    static final int SWITCH_BRANCH = 9;
+    static final int REMOVE_BRANCH = 10;
+    static final int RESET = 11;
+    static final int CHANGE_POINTER = 12;
+    static final int MERGE = 13;
+
+    private File file;
+    private int seq;
+    private int records;
+    private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    private DataOutputStream out = new DataOutputStream(pending);
+
+    /** Creates a journal that is stored in the given file.
+     *  @param f File of the journal */
+    public Journal(File f) {
+        file = f;
+    }
+
+    /** Returns the number of records written since the last snapshot. */
+    public int records() {
+        return records;
+    }
+
+    /** Records a change that takes a single string argument, like staging a file.
+     *  @param type int kind of record
+     *  @param arg String file or branch name */
+    public void record(int type, String arg) {
+        try {
+            out.writeByte(type);
+            out.writeUTF(arg);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        records += 1;
+    }
+
+    /** Records a change that takes a single int argument, like moving HEAD to a commit.
+     *  @param type int kind of record
+     *  @param arg int commit id or count */
+    public void record(int type, int arg) {
+        try {
+            out.writeByte(type);
+            out.writeInt(arg);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        records += 1;
+    }
+
+    /** Records a change that takes no argument, like clearing the staging area.
+     *  @param type int kind of record */
+    public void record(int type) {
+        try {
+            out.writeByte(type);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        records += 1;
+    }
+
+    /** Appends the records written since the last flush to the journal file. */
+    public void flush() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        boolean fresh = !file.exists() || file.length() == 0;
+        try (DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(file, true))) {
+            if (fresh) {
+                fileOut.writeInt(seq);
+            }
+            pending.writeTo(fileOut);
+        }
+        pending.reset();
+    }
+
+    /** Starts an empty journal for the snapshot with the given sequence number, dropping
+     *  all records. Called right after a snapshot has been written.
+     *  @param snapshotSeq int sequence number of the new snapshot */
+    public void reset(int snapshotSeq) throws IOException {
+        seq = snapshotSeq;
+        records = 0;
+        pending.reset();
+        File temp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream fileOut = new DataOutputStream(new FileOutputStream(temp))) {
+            fileOut.writeInt(seq);
+        }
+        Files.move(temp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /** Applies every record in the journal file to the given tree, which must be the
+     *  snapshot the journal belongs to, and must not have a journal attached yet. A record
+     *  cut short by a crash is dropped from the end of the file.
+     *  @param tree CommitTree loaded from the snapshot */
+    public void replay(CommitTree tree) throws IOException {
+        seq = tree.snapshotSeq();
+        records = 0;
+        if (!file.exists()) {
+            return;
+        }
+        long good = 0;
+        boolean stale = false;
+        CountingInputStream counter = new CountingInputStream(
+            new BufferedInputStream(new FileInputStream(file)));
+        try (DataInputStream in = new DataInputStream(counter)) {
+            stale = in.readInt() != seq;
+            if (stale) {
+                return;
+            }
+            good = counter.count;
+            int type;
+            while ((type = in.read()) != -1) {
+                apply(tree, type, in);
+                good = counter.count;
+                records += 1;
+            }
+        } catch (EOFException e) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(good);
+            }
+        } finally {
+            if (stale) {
+                file.delete();
+            }
+        }
+    }
+
+    /** Applies one record of the given type to the tree. */
+    private void apply(CommitTree tree, int type, DataInputStream in) throws IOException {
+        switch (type) {
+            case STAGE:
+                tree.stageFile(in.readUTF()); break;
+            case UNSTAGE:
+                tree.unStageFile(in.readUTF()); break;
+            case MARK_REMOVAL:
+                tree.markRemoval(in.readUTF()); break;
+            case UNMARK_REMOVAL:
+                tree.unmarkRemoval(in.readUTF()); break;
+            case CLEAR_STAGED:
+                tree.clearStagedAndRemove(); break;
+            case COUNT:
+                tree.setCount(in.readInt()); break;
+            case ADD_COMMIT:
+            case RESET:
+                tree.resetPointer(commit(tree, in.readInt())); break;
+            case CREATE_BRANCH:
+                tree.createBranch(in.readUTF()); break;
+            case SWITCH_BRANCH:
+                tree.switchBranch(in.readUTF()); break;
+            case REMOVE_BRANCH:
+                tree.removeBranch(in.readUTF()); break;
+            case CHANGE_POINTER:
+                tree.changePointer(in.readUTF()); break;
+            case MERGE:
+                tree.setMergeParent(in.readInt()); break;
+            default:
+                throw new IOException("Unknown journal record " + type);
+        }
+    }
+
+    /** Returns the commit of the tree with the given id, and throws an IOException if the
+     *  journal points at a commit that is not stored. */
+    private static Commit commit(CommitTree tree, int id) throws IOException {
+        Commit commit = tree.get(id);
+        if (commit == null) {
+            throw new IOException("The journal points at commit " + id + ", which does not exist.");
+        }
+        return commit;
+    }
+
+    /** Counts the bytes read through it, to find where the last whole record ends. */
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count += 1;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+    }
+}
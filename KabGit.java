@@ -1,22 +1,40 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.nio.file.Paths;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
-import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
 
 /** In order to compare the contents of two files, I received help from the following link:
  *  http://stackoverflow.com/questions/27379059/determine-if-two-files-store-the-same-content
@@ -29,6 +47,26 @@ import static java.nio.file.StandardCopyOption.COPY_ATTRIBUTES;
  */
 public class KabGit {
     private CommitTree commitTree;
+    private static final int COMPACT_LIMIT = 1000;
+    private static final int INGEST_THREADS = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private ObjectStore objectStore = new ObjectStore("./.kabgit");
+    private Journal journal = new Journal(new File("./.kabgit/journal"));
+    private TreeStore trees = new TreeStore(objectStore);
+    private CommitStore commitStore = new CommitStore("./.kabgit", trees);
+    private CommitGraph commitGraph = new CommitGraph("./.kabgit");
+    private PathFilters pathFilters = new PathFilters("./.kabgit");
+    private MessageIndex messageIndex = new MessageIndex("./.kabgit");
+    private StagingIndex index = new StagingIndex("./.kabgit");
+    private Config config = new Config("./.kabgit");
+    private Scanner input = new Scanner(System.in);
+    private TreeWatcher watcher;
+    private boolean damaged = false;
+
+    /** Creates a KabGit for the repository in the current directory, applying its
+     *  checkout.mode setting to the object store. */
+    public KabGit() {
+        objectStore.setRaw("raw".equals(config.get(Config.MODE)));
+    }
     
     /** Initializes by creating a .kabgit folder to store all metadata. If folder already
      *  exists, prints an error message saying that the folder already exists.
@@ -38,9 +76,6 @@ public class KabGit {
         Calendar cal = Calendar.getInstance();
         String dateTime = dateFormat.format(cal.getTime());
         File file = new File("./.kabgit");
-        Commit commit = new Commit("initial commit", 0, new HashMap<String, String>());
-        commit.setDateTime(dateTime);
-        CommitTree newTree = new CommitTree(commit);        
         if (!file.exists()) {
             if (file.mkdir()) {
                 System.out.println("Successfully initialized.");
@@ -49,38 +84,82 @@ public class KabGit {
             String msg = "A kabgit version control system already exists in the current directory.";
             System.out.println(msg);
         }
-        commitTree = newTree;
-        saveTree();
+        try {
+            Commit commit = new Commit("initial commit", 0, trees.empty(), trees);
+            commit.setDateTime(dateTime);
+            commitTree = new CommitTree(commit, commitStore, commitGraph, pathFilters,
+                                        messageIndex);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+        compactTree();
     }
     
-    /** Loads the commitTree by deserializing from CommitTree.ser . After loading, reassigns. */
-    private void loadTree() {
+    /** Loads the commitTree by deserializing the snapshot in CommitTree.ser and replaying the
+     *  journal of the changes made since on top of it. After loading, reassigns. If either
+     *  cannot be read, the repository is reported as damaged and the commitTree is left
+     *  null, since changes to a tree whose journal was not replayed would not be recorded. */
+    void loadTree() {
         CommitTree tree = null;
         File treeFile = new File("./.kabgit/CommitTree.ser");
         if (treeFile.exists()) {
-            try {
-                FileInputStream fileIn = new FileInputStream(treeFile);
-                ObjectInputStream objectIn = new ObjectInputStream(fileIn);
-                tree = (CommitTree) objectIn.readObject();
+            try (ObjectInputStream objectIn = new ObjectInputStream(
+                    new BufferedInputStream(new FileInputStream(treeFile)))) {
+                CommitTree snapshot = (CommitTree) objectIn.readObject();
+                snapshot.setStore(commitStore, commitGraph, pathFilters, messageIndex);
+                journal.replay(snapshot);
+                snapshot.setJournal(journal);
+                tree = snapshot;
             } catch (IOException e) {
                 String msg = "IOException while loading treeFile.";
                 e.printStackTrace();
                 System.out.println(msg);
+                damaged = true;
             } catch (ClassNotFoundException e) {
                 String msg = "ClassNotFoundException while loading treeFile.";
                 System.out.println(msg);
+                damaged = true;
             }
         }
         commitTree = tree;
     }
     
-    /** Saves the commitTree by serializing it. */
-    private void saveTree() {
+    /** Saves the commitTree by appending the changes made during this command to the
+     *  journal. Once the journal holds COMPACT_LIMIT records, compacts it into a new
+     *  snapshot instead. */
+    void saveTree() {
+        if (commitTree == null) {
+            return;
+        }
+        try {
+            journal.flush();
+            index.save();
+        } catch (IOException e) {
+            e.printStackTrace();
+            String msg = "IOException while saving CommitTree.";
+            System.out.println(msg);
+        }
+        if (journal.records() >= COMPACT_LIMIT) {
+            compactTree();
+        }
+    }
+
+    /** Saves the commitTree as a new snapshot by serializing it, and starts an empty journal
+     *  for it. The snapshot is written to a temporary file first, so a crash leaves either
+     *  the old snapshot and journal or the new snapshot in place. */
+    private void compactTree() {
         try {
             File treeFile = new File("./.kabgit/CommitTree.ser");
-            FileOutputStream fileOut = new FileOutputStream(treeFile);
-            ObjectOutputStream objectOut = new ObjectOutputStream(fileOut);
-            objectOut.writeObject(commitTree);
+            File tempFile = new File("./.kabgit/CommitTree.ser.tmp");
+            int seq = commitTree.nextSnapshotSeq();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+                objectOut.writeObject(commitTree);
+            }
+            Files.move(tempFile.toPath(), treeFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+            journal.reset(seq);
+            commitTree.setJournal(journal);
         } catch (IOException e) {
             e.printStackTrace();
             String msg = "IOException while saving CommitTree.";
@@ -94,44 +173,147 @@ public class KabGit {
     public void add(String fileName) {
         File fileInput = new File(fileName);
         if (fileInput.exists()) {
-            Commit lastCommit = commitTree.currentCommit();
-            if (!lastCommit.fileMap().isEmpty()) {
-                String lastFileName = lastCommit.retrieveFile(fileName);
-                if (lastFileName != null) {
-                    File lastFile = new File(lastFileName);
-                    if (compareFiles(fileInput, lastFile)) {
-                        System.out.println("File has not been modified since the last commit.");
-                        return;
-                    }
-                }   
+            String lastHash = commitTree.currentCommit().retrieveFile(fileName);
+            if (lastHash != null && lastHash.equals(hashFile(fileInput))) {
+                System.out.println("File has not been modified since the last commit.");
+                return;
             }
-            commitTree.stageFile(fileName);
-            commitTree.unmarkRemoval(fileName);
+            stage(List.of(fileName));
         } else {
             System.out.println("File does not exist.");
         }
         saveTree();
     }
+
+    /** Stages every file named by the given paths, folders and globs, as PathSpec describes
+     *  them. Untracked files that .kabgitignore ignores are left out unless they are named
+     *  on their own, and tracked files in a folder or glob that no longer exist are marked
+     *  for removal. A single file is added as add(fileName) does.
+     *  @param args List of the paths, folders and globs to add */
+    public void add(List<String> args) {
+        PathSpec single = new PathSpec(args.get(0));
+        if (args.size() == 1 && !single.isGlob() && new File(single.path()).isFile()) {
+            add(single.path());
+            return;
+        }
+        Commit head = commitTree.currentCommit();
+        IgnoreFile ignore = IgnoreFile.load(new File("."));
+        TreeSet<String> files = new TreeSet<String>();
+        TreeSet<String> missing = new TreeSet<String>();
+        for (String arg: args) {
+            PathSpec spec = new PathSpec(arg);
+            if (!spec.isGlob() && new File(spec.path()).isFile()) {
+                files.add(spec.path());
+                continue;
+            }
+            int found = files.size() + missing.size();
+            try {
+                files.addAll(spec.files(ignore, head));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            for (String tracked: head.fileMap().keySet()) {
+                if (spec.matches(tracked) && !new File(tracked).isFile()) {
+                    missing.add(tracked);
+                }
+            }
+            if (files.size() + missing.size() == found) {
+                System.out.println(spec.isGlob() ? "No files match " + arg + "."
+                                   : "File does not exist.");
+            }
+        }
+        stage(files);
+        for (String file: missing) {
+            commitTree.unStageFile(file);
+            commitTree.markRemoval(file);
+        }
+        saveTree();
+    }
     
-    /** Checks byte-by-byte if two files are equal. 
-     *  @param fileIn The first File object to compare.
-     *  @param fileOut The second File object to compare.    
-     */
-    private boolean compareFiles(File fileIn, File fileOut) {
-        try {
-            byte[] f1 = Files.readAllBytes(fileIn.toPath());
-            byte[] f2 = Files.readAllBytes(fileOut.toPath());
-            if (Arrays.equals(f1, f2)) {
-                return true;
+    /** Stages every modified and untracked file in the working directory, and marks every
+     *  deleted file for removal, or unstages it if it was only staged. The files to look at
+     *  come from the same scan as status, so with a watcher attached only the paths that
+     *  changed since the last status or add are checked. */
+    public void addAll() {
+        WorkingTree.Status tree = workingStatus();
+        ArrayList<String> files = new ArrayList<String>(tree.modified());
+        files.addAll(tree.untracked());
+        stage(files);
+        for (String file: tree.deleted()) {
+            if (commitTree.currentCommit().retrieveFile(file) != null) {
+                commitTree.unStageFile(file);
+                commitTree.markRemoval(file);
+            } else {
+                commitTree.unStageFile(file);
             }
+        }
+    }
+
+    /** Stores the given files and stages the ones that differ from the current commit,
+     *  and unstages the ones that are back to their committed contents.
+     *  @param files Collection of the names of existing files */
+    private void stage(Collection<String> files) {
+        Commit head = commitTree.currentCommit();
+        for (Map.Entry<String, String> entry: ingest(files, head).entrySet()) {
+            if (!entry.getValue().equals(head.retrieveFile(entry.getKey()))) {
+                commitTree.stageFile(entry.getKey());
+            } else {
+                commitTree.unStageFile(entry.getKey());
+            }
+            commitTree.unmarkRemoval(entry.getKey());
+        }
+    }
+
+    /** Stores the contents of the given files on a pool of INGEST_THREADS threads and
+     *  returns their hashes, in the order of the files. Those that could not be read are
+     *  left out, after printing their names. Each file is stored whole, with its version in
+     *  the given commit noted as the base for a delta at the next pack, and is read at most
+     *  once, or not at all if the index shows it is stored.
+     *  @param files Collection of the names of existing files
+     *  @param head Commit holding the previous versions of the files */
+    private Map<String, String> ingest(Collection<String> files, Commit head) {
+        ExecutorService pool = Executors.newFixedThreadPool(INGEST_THREADS);
+        LinkedHashMap<String, Future<String>> tasks = new LinkedHashMap<String, Future<String>>();
+        for (String fileName: files) {
+            String base = head.retrieveFile(fileName);
+            tasks.put(fileName, pool.submit(() -> index.store(new File(fileName), objectStore, base)));
+        }
+        pool.shutdown();
+        LinkedHashMap<String, String> hashes = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, Future<String>> entry: tasks.entrySet()) {
+            try {
+                hashes.put(entry.getKey(), entry.getValue().get());
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                System.out.println("Could not store " + entry.getKey() + ".");
+            }
+        }
+        return hashes;
+    }
+
+    /** Attaches a watcher of the working directory, which status and add -A use to look
+     *  only at the paths that changed.
+     *  @param w TreeWatcher of the working directory */
+    void setWatcher(TreeWatcher w) {
+        watcher = w;
+    }
+
+    /** Returns the content hash of the given working file, using the stat data cached in
+     *  the index to avoid reading the file when it has not changed. 
+     *  @param file File in the working directory */
+    private String hashFile(File file) {
+        try {
+            return index.hash(file, objectStore);
         } catch (IOException e) {
             e.printStackTrace();
         }
-        return false;
+        return null;
     }
-    
+
     /** Creates a new commit object with a commit message and adds all the currently staged files
-     * to it. Also sets the date and time of the commit to the current time and date. Finally 
+     * to it, noting its previous version as the base for a delta at the next pack. The
+     * new commit shares every folder without staged or removed files with the last commit.
+     * Also sets the date and time of the commit to the current time and date. Finally 
      * it saves the tree. 
      * @param message String message of what we're about the commit.
      */
@@ -139,29 +321,44 @@ public class KabGit {
         if (message == null) {
             return;
         }
-        if (commitTree.stagedFiles().isEmpty()) {
+        if (commitTree.stagedFiles().isEmpty() && commitTree.mergeParent() < 0) {
             System.out.println("No changes added to the commit.");
             commitTree.clearStagedAndRemove();
             return;
         }
-        commitTree.incrementCount();
         Commit lastCommit = commitTree.currentCommit();
-        HashMap<String, String> files = new HashMap<String, String>();
-        ArrayList<String> stagedFiles = commitTree.stagedFiles();
-        ArrayList<String> removedFiles = commitTree.removedFiles();
-        for (String fileName: lastCommit.fileMap().keySet()) {
-            if (!stagedFiles.contains(fileName) && !removedFiles.contains(fileName)) {
-                files.put(fileName, lastCommit.fileMap().get(fileName));
-            }
+        Map<String, String> stored = ingest(commitTree.stagedFiles(), lastCommit);
+        if (stored.size() < commitTree.stagedFiles().size()) {
+            System.out.println("No commit was made.");
+            return;
+        }
+        commitTree.incrementCount();
+        HashMap<String, String> changes = new HashMap<String, String>();
+        for (String fileName: commitTree.removedFiles()) {
+            changes.put(fileName, null);
+        }
+        changes.putAll(stored);
+        Commit newCommit;
+        try {
+            newCommit = new Commit(message, commitTree.globalCount(), lastCommit, changes);
+            newCommit.setSecondParentID(commitTree.mergeParent());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
         }
-        Commit newCommit = new Commit(message, commitTree.globalCount(), files);
-        newCommit.addStagedFiles(commitTree.stagedFiles());
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
         Calendar cal = Calendar.getInstance();
         String dateTime = dateFormat.format(cal.getTime());
         newCommit.setDateTime(dateTime);
-        commitTree.add(newCommit);
+        try {
+            commitTree.add(newCommit);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not write the commit.");
+            return;
+        }
         commitTree.clearStagedAndRemove();
+        commitTree.setMergeParent(-1);
         saveTree();
     }
 
@@ -184,7 +381,6 @@ public class KabGit {
             String msg = "File does not exist in the most recent commit, or no such branch exists.";
             System.out.println(msg);
         }
-        saveTree();
     }
 
     /** Uses a passed in integer commit ID to obtain the Commit object corresponding to that ID.
@@ -201,20 +397,12 @@ public class KabGit {
             System.out.println("No commit with that id exists.");
             return;
         }
-        String copy = lastCommit.retrieveFile(fileName);
-        if (copy == null) {
-            System.out.println("File does not exist in that commit.");
-            return;
-        }
-        File destFile = new File(copy);
-        if (!destFile.exists()) {
+        String hash = lastCommit.retrieveFile(fileName);
+        if (!objectStore.contains(hash)) {
             System.out.println("File does not exist in that commit.");
             return;
         }
-        File toDelete = new File(fileName);
-        toDelete.delete();
-        copyFile(copy, fileName);
-        saveTree();
+        copyFile(hash, fileName);
     }
     
     /** Switches the branch so that the current or most recent commit points to the commit
@@ -225,15 +413,64 @@ public class KabGit {
     public void checkoutBranch(String branchName) {
         if (branchName.equals(commitTree.currBranch())) {
             System.out.println("No need to checkout the current branch.");
+            return;
         }
         Commit currCommit = commitTree.currentCommit();
-        Set<String> currFiles = currCommit.files();
+        commitTree.setMergeParent(-1);
         commitTree.switchBranch(branchName);
-        Commit commit = commitTree.currentCommit();
-        for (String file: commit.files()) {
-            checkout(commit.getID(), file);
+        switchFiles(currCommit, commitTree.currentCommit());
+    }
+
+    /** Updates the working directory from the files of commit from to those of commit to.
+     *  Only the files whose content differs between the two commits are written, and the
+     *  files that from tracks but to does not are deleted. Files that are the same in both
+     *  commits are left alone, and folders that are the same are not even read.
+     *  @param from Commit the working directory was last checked out from
+     *  @param to Commit to check out */
+    private void switchFiles(Commit from, Commit to) {
+        ArrayList<String> deleted = new ArrayList<String>();
+        HashMap<String, String> changed = new HashMap<String, String>();
+        for (Map.Entry<String, String> e: diff(from, to).entrySet()) {
+            if (e.getValue() == null) {
+                deleted.add(e.getKey());
+            } else {
+                changed.put(e.getKey(), e.getValue());
+            }
+        }
+        Materializer materializer = materializer();
+        materializer.delete(deleted);
+        writeFiles(changed);
+    }
+
+    /** Returns the files that differ between the commits from and to, mapped to their
+     *  content hashes in to, or to null for the files that to does not have. A null from
+     *  is treated as a commit with no files.
+     *  @param from Commit to compare from
+     *  @param to Commit to compare to */
+    private Map<String, String> diff(Commit from, Commit to) {
+        try {
+            return trees.diff(from == null ? trees.empty() : from.tree(), to.tree());
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return new HashMap<String, String>();
+    }
 
+    /** Writes the given files from the object store into the working directory in parallel,
+     *  printing an error for each file that could not be written.
+     *  @param files Map of file names to the content hashes to write */
+    private void writeFiles(Map<String, String> files) {
+        Map<String, IOException> errors = materializer().write(files);
+        for (Map.Entry<String, IOException> e: errors.entrySet()) {
+            System.out.println("Could not write " + e.getKey() + ": " + e.getValue().getMessage());
+        }
+    }
+
+    /** Returns a Materializer that writes as many files at a time as the checkout.threads
+     *  setting allows. */
+    private Materializer materializer() {
+        int threads = config.getInt(Config.THREADS, Materializer.defaultThreads());
+        return new Materializer(objectStore, index, threads);
     }
 
     /** Marks the file with the given fileName for removal so it is not included
@@ -243,9 +480,9 @@ public class KabGit {
      *  @param fileName String name of file to mark for removal.
      */
     public void remove(String fileName) {
-        ArrayList<String> stagedFiles = commitTree.stagedFiles();
-        Set<String> currCommitFiles = commitTree.currentCommit().files();
-        if (!stagedFiles.contains(fileName) && !currCommitFiles.contains(fileName)) {
+        Set<String> stagedFiles = commitTree.stagedFiles();
+        String currHash = commitTree.currentCommit().retrieveFile(fileName);
+        if (!stagedFiles.contains(fileName) && currHash == null) {
             System.out.println("No reason to remove the file.");
             return;
         }
@@ -254,6 +491,8 @@ public class KabGit {
 
     /** Prints out the status of all the branches, staged files and files
      *  marked for removal, printing the name of the current branch with a '*'.
+     *  Then prints the files in the working directory that were modified or deleted since
+     *  the current commit without being staged, and the files that are not tracked.
      */
     public void status() {
         System.out.println("=== Branches ===");
@@ -272,9 +511,36 @@ public class KabGit {
         for (String rfile: commitTree.removedFiles()) {
             System.out.println(rfile);
         }
+        WorkingTree.Status tree = workingStatus();
+        System.out.println("\n=== Modifications Not Staged For Commit ===");
+        for (String file: tree.deleted()) {
+            System.out.println(file + " (deleted)");
+        }
+        for (String file: tree.modified()) {
+            System.out.println(file + " (modified)");
+        }
+        System.out.println("\n=== Untracked Files ===");
+        for (String file: tree.untracked()) {
+            System.out.println(file);
+        }
     }
 
-    /** Restores all files to their versions in the commit with the given ID
+    /** Returns the modified, deleted and untracked files of the working directory, from the
+     *  paths that changed since the last time if a watcher is attached, or else by
+     *  scanning the whole working directory. */
+    private WorkingTree.Status workingStatus() {
+        WorkingTree tree = new WorkingTree(new File(""), index, objectStore,
+                                           IgnoreFile.load(new File(".")));
+        if (watcher != null) {
+            return watcher.status(tree, commitTree.currentCommit(), commitTree.stagedFiles(),
+                                  commitTree.removedFiles());
+        }
+        return tree.status(commitTree.currentCommit().fileMap(), commitTree.stagedFiles(),
+                           commitTree.removedFiles());
+    }
+
+    /** Restores all files to their versions in the commit with the given ID, writing only
+     *  the files that differ from the current commit and deleting the ones it does not have.
      *  Also moves current branch's head to that commit node.
      *  @param commitID integer id of the commit which we use to reset.
      */
@@ -284,29 +550,24 @@ public class KabGit {
             System.out.println("No commit with that id exists.");
             return;
         }
-        int id = commit.getID();
-        for (String file: commit.files()) {
-            checkout(id, file);
-        }
+        switchFiles(commitTree.currentCommit(), commit);
+        commitTree.setMergeParent(-1);
         commitTree.resetPointer(commit);
     }
 
     
-    /** Merges files from the head of the given branch onto the head of the current
-     *  branch. If the passed in branchName is of the branch that we're currently at,
-     *  prints an error message
-     *  Finds the split node. Finds the files contained in the commit at the split
-     *  node, the commit at the current branch, and the commit at the given branch.  
-     *  Iterates through the current files, and finds the files that were modified
-     *  since the split commit and stores in these modified files in a set.
-     *  Then, iterates through the files in the given branch's commit in order 
-     *  to find out the files that were modified since the split commit.
-     *  Finally, iterates through the files in the given branch's commit and copies
-     *  conflicted files to working directory, if the file exists in the modified
-     *  files of the given branch's commit, and if the file exists in the modified
-     *  files of the current branch's commit. These conflicted copies are made with .conflicted
-     *  The files that exist as part of the given modified files and non modified files
-     *  are simply copied to the working directory.
+    /** Merges the head of the given branch into the head of the current branch, using the
+     *  split point of the two branches as the common base. If the given branch is already
+     *  in the history of the current one, there is nothing to do, and if the current branch
+     *  is in the history of the given one, it is simply moved forward to it.
+     *  Otherwise each file that only the given branch changed since the split point is
+     *  taken from it, and each file that both branches changed is merged line by line, in
+     *  parallel: changes to separate lines are combined, and lines that both changed
+     *  differently are written between conflict markers. A file that one branch deleted
+     *  and the other changed is a conflict, and keeps the changed version.
+     *  Every file that merged cleanly is staged. If nothing conflicted, a merge commit is
+     *  made right away with both heads as its parents. Otherwise the conflicted files are
+     *  listed, and the next commit, made once they are fixed and added, is the merge commit.
      *  @param branchName String name of the branch to merge with.
      */
     public void merge(String branchName) {
@@ -314,64 +575,88 @@ public class KabGit {
             System.out.println("Cannot merge a branch with itself."); return;
         } else if (!commitTree.branchMap().containsKey(branchName)) {
             System.out.println("A branch with that name does not exist."); return;
+        } else if (!commitTree.stagedFiles().isEmpty() || !commitTree.removedFiles().isEmpty()) {
+            System.out.println("You have uncommitted changes."); return;
         }
         Commit splitCommit = commitTree.findSplitPoint(branchName); 
-        Commit givenCommit = commitTree.branchMap().get(branchName); 
+        Commit givenCommit = commitTree.branchCommit(branchName); 
         Commit currCommit = commitTree.currentCommit(); 
-        Set<String> givenFiles = givenCommit.files(); 
-        Set<String> currFiles = currCommit.files(); 
-        Set<String> splitFiles = new HashSet<String>();
-        if (splitCommit != null) {
-            splitFiles = splitCommit.files();
-        }
-        Set<String> modGiven = new HashSet<String>();
-        for (String givenFile: givenFiles) {
-            if (splitFiles != null) {
-                if (!splitFiles.contains(givenFile)) {
-                    modGiven.add(givenFile);
+        if (splitCommit != null && splitCommit.getID() == givenCommit.getID()) {
+            System.out.println("Given branch is an ancestor of the current branch."); return;
+        } else if (splitCommit != null && splitCommit.getID() == currCommit.getID()) {
+            switchFiles(currCommit, givenCommit);
+            commitTree.resetPointer(givenCommit);
+            System.out.println("Current branch fast-forwarded."); return;
+        }
+        Map<String, String> modCurr = diff(splitCommit, currCommit);
+        Map<String, String> modGiven = diff(splitCommit, givenCommit);
+        HashMap<String, String> taken = new HashMap<String, String>();
+        ArrayList<String> deleted = new ArrayList<String>();
+        TreeMap<String, String[]> both = new TreeMap<String, String[]>();
+        TreeSet<String> conflicts = new TreeSet<String>();
+        for (Map.Entry<String, String> e: modGiven.entrySet()) {
+            String file = e.getKey();
+            String given = e.getValue();
+            String curr = modCurr.get(file);
+            if (!modCurr.containsKey(file)) {
+                if (given == null) {
+                    deleted.add(file);
                 } else {
-                    File in = new File(splitCommit.retrieveFile(givenFile));
-                    File out = new File(givenCommit.retrieveFile(givenFile));
-                    if (!compareFiles(in, out)) {
-                        modGiven.add(givenFile);
-                    }
+                    taken.put(file, given);
                 }
+            } else if (given == null ? curr == null : given.equals(curr)) {
+                continue;
+            } else if (curr == null) {
+                taken.put(file, given);
+                conflicts.add(file);
+            } else if (given == null) {
+                conflicts.add(file);
             } else {
-                modGiven.add(givenFile);
+                String base = splitCommit == null ? null : splitCommit.retrieveFile(file);
+                both.put(file, new String[] {base, curr, given});
             }
         }
-        Set<String> modCurr = new HashSet<String>();
-        for (String currFile: currFiles) {
-            if (splitFiles != null) {
-                if (!splitFiles.contains(currFile)) {
-                    modCurr.add(currFile);
-                } else {
-                    File in = new File(splitCommit.retrieveFile(currFile));
-                    File out = new File(currCommit.retrieveFile(currFile));
-                    if (!compareFiles(in, out)) {
-                        modCurr.add(currFile);
-                    }
-                }
-            } else {
-                modCurr.add(currFile);
+        materializer().delete(deleted);
+        writeFiles(taken);
+        Merger.Result merged = new Merger(objectStore, config.getInt(Config.THREADS,
+            Materializer.defaultThreads())).merge(both, commitTree.currBranch(), branchName);
+        for (Map.Entry<String, IOException> e: merged.errors().entrySet()) {
+            System.out.println("Could not merge " + e.getKey() + ": " + e.getValue().getMessage());
+            conflicts.add(e.getKey());
+        }
+        conflicts.addAll(merged.conflicts());
+        for (String file: deleted) {
+            commitTree.markRemoval(file);
+        }
+        for (String file: taken.keySet()) {
+            if (!conflicts.contains(file)) {
+                commitTree.stageFile(file);
             }
         }
-        for (String gFile: givenFiles) {
-            if (modGiven.contains(gFile) && !modCurr.contains(gFile)) {
-                copyFile(givenCommit.retrieveFile(gFile), gFile);
-            } else if (modGiven.contains(gFile) && modCurr.contains(gFile)) {
-                copyFile(givenCommit.retrieveFile(gFile), gFile + ".conflicted");
+        for (String file: both.keySet()) {
+            if (!conflicts.contains(file)) {
+                commitTree.stageFile(file);
+            }
+        }
+        commitTree.setMergeParent(givenCommit.getID());
+        if (conflicts.isEmpty()) {
+            commit("Merged " + branchName + " into " + commitTree.currBranch() + ".");
+        } else {
+            System.out.println("Encountered a merge conflict in:");
+            for (String file: conflicts) {
+                System.out.println(file);
             }
         }
     }
 
-    /** Copies the file from the given source path, to the the given dest 
-     *  @param source String source file
+    /** Copies the stored object with the given hash, to the the given dest 
+     *  @param hash String hash of the stored object
      *  @param dest String destination file
      */
-    private void copyFile(String source, String dest) {
+    private void copyFile(String hash, String dest) {
         try {
-            Files.copy(Paths.get(source), Paths.get(dest), REPLACE_EXISTING, COPY_ATTRIBUTES);
+            objectStore.restore(hash, dest);
+            index.update(dest, hash);
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -383,19 +668,23 @@ public class KabGit {
      *  history of the current branch, prints an error message. If the current branch is in
      *  the history of the given, branch, just switches the current branch's commit node to
      *  point to the commit node that the given branch points to.
-     *  Finds the files modified in the given branch since the split commit and stores them in a
-     *  set. Finds the files modified in the current branch since the split and stores them in a
-     *  set. Removes all the files from the set of modified files in the given branch that existed 
-     *  in the set of files that were modified in the current branch.
-     *  Creates an array list of replayed commits to be rebased.
-     *  Changes the current branch's pointer to point to the commit node that the given branch 
-     *  points to. Iterates through this array list in order to add these replayed commits to the 
-     *  commit tree. Finally, copies all the most recent files in the most recent replayed commit, 
-     *  into the working directory.
+     *  Otherwise replays the commits of the current branch since the split point on top of
+     *  the given branch, in the order of the given todo list, or oldest first if there is
+     *  none. The todo list is parsed and checked as a whole before any commit is made, see
+     *  RebasePlan, and an invalid one is reported and leaves the branch as it is.
+     *  Each commit is replayed from its change set, the files it changed compared to its
+     *  parent as found by a tree diff, so the cost depends on the number of changes and no
+     *  file is read. A file that a replayed commit changed gets its version from that
+     *  commit, and a squashed commit adds its changes to the commit replayed before it.
+     *  All replayed commits share one date and time. They are all built before the branch
+     *  moves, and if one cannot be built or written, the branch is set back to its old head
+     *  and the working directory is left alone. Otherwise, finally writes the files that
+     *  differ between the old and the new head of the branch into the working directory,
+     *  once.
      * @param branchName String name of branch to rebase with
-     * @param interactive Rebases the commits interactively when this is true
+     * @param todo List of the lines of the todo list, or null to replay every commit
      */
-    public void rebase(String branchName, boolean interactive) {
+    public void rebase(String branchName, List<String> todo) {
         if (!commitTree.branchMap().containsKey(branchName)) {
             System.out.println("A branch with that name does not exist.");
             return;
@@ -405,136 +694,369 @@ public class KabGit {
         } else if (commitTree.checkHistory(branchName)) {
             System.out.println("Already up-to-date.");
             return;
-        } else if (commitTree.checkHistory2(branchName)) {
-            commitTree.changePointer(branchName);
-            return;
         }
         Commit splitCommit = commitTree.findSplitPoint(branchName);
-        Commit givenCommit = commitTree.branchMap().get(branchName);
+        Commit givenCommit = commitTree.branchCommit(branchName);
         Commit currCommit = commitTree.currentCommit();
-        Set<String> splitCommitFiles = splitCommit.files();
-        Set<String> currCommitFiles = currCommit.files();
-        Set<String> givenCommitFiles = givenCommit.files();
-        HashMap<String, String> givenModified = new HashMap<String, String>();
-        for (String givenFile: givenCommitFiles) {
-            if (!splitCommitFiles.contains(givenFile)) {
-                givenModified.put(givenFile, givenCommit.retrieveFile(givenFile));
-            } else if (splitCommitFiles.contains(givenFile)) {
-                File in = new File(splitCommit.retrieveFile(givenFile));
-                File out = new File(givenCommit.retrieveFile(givenFile));
-                if (!compareFiles(in, out)) {
-                    givenModified.put(givenFile, givenCommit.retrieveFile(givenFile));
+        if (commitTree.checkHistory2(branchName)) {
+            switchFiles(currCommit, givenCommit);
+            commitTree.changePointer(branchName);
+            return;
+        }
+        ArrayList<Integer> ids = commitTree.since(splitCommit);
+        RebasePlan plan;
+        try {
+            plan = todo == null ? RebasePlan.pickAll(ids) : RebasePlan.parse(todo, ids);
+        } catch (IllegalArgumentException e) {
+            System.out.println("Invalid rebase plan. " + e.getMessage());
+            return;
+        }
+        DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        String dateTime = dateFormat.format(Calendar.getInstance().getTime());
+        ArrayList<Commit> replayed = new ArrayList<Commit>();
+        int count = commitTree.globalCount();
+        try {
+            for (RebasePlan.Step step: plan.steps()) {
+                if (step.command() == RebasePlan.SKIP) {
+                    continue;
                 }
+                Commit commit = commitTree.get(step.id());
+                Commit parent = commitTree.parent(commit);
+                Map<String, String> changes =
+                    trees.diff(parent == null ? trees.empty() : parent.tree(), commit.tree());
+                String message = step.message() == null ? commit.getMessage() : step.message();
+                Commit pending;
+                if (step.command() == RebasePlan.SQUASH) {
+                    Commit last = replayed.remove(replayed.size() - 1);
+                    if (step.message() == null) {
+                        message = last.getMessage() + "\n" + message;
+                    }
+                    pending = new Commit(message, last.getID(), last, changes);
+                } else {
+                    Commit base = replayed.isEmpty() ? givenCommit : replayed.get(replayed.size() - 1);
+                    count += 1;
+                    pending = new Commit(message, count, base, changes);
+                }
+                pending.setDateTime(dateTime);
+                replayed.add(pending);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("Could not replay the commits. The branch was not changed.");
+            return;
+        }
+        commitTree.setCount(count);
+        commitTree.changePointer(branchName);
+        try {
+            for (Commit commit: replayed) {
+                commitTree.add(commit);
             }
-        }       
-        HashSet<String> currModified = new HashSet<String>();
-        for (String currFile: currCommitFiles) {
-            if (!splitCommitFiles.contains(currFile)) {
-                currModified.add(currFile);
-            } else if (splitCommitFiles.contains(currFile)) {
-                File in = new File(splitCommit.retrieveFile(currFile));
-                File out = new File(currCommit.retrieveFile(currFile));
-                if (!compareFiles(in, out)) {
-                    currModified.add(currFile);
+        } catch (IOException e) {
+            e.printStackTrace();
+            commitTree.resetPointer(currCommit);
+            System.out.println("Could not write the rebased commits. The branch was not changed.");
+            return;
+        }
+        switchFiles(currCommit, commitTree.currentCommit());
+    }
+
+    /** Prints the todo list that replays every commit of the current branch since its
+     *  split point with the given branch, oldest first, to be edited and passed back to
+     *  an interactive rebase.
+     *  @param branchName String name of branch to rebase with */
+    public void rebasePlan(String branchName) {
+        if (!commitTree.branchMap().containsKey(branchName)) {
+            System.out.println("A branch with that name does not exist.");
+            return;
+        } else if (commitTree.currBranch().equals(branchName)) {
+            System.out.println("Cannot rebase a branch onto itself.");
+            return;
+        }
+        ArrayList<Integer> ids = commitTree.since(commitTree.findSplitPoint(branchName));
+        ArrayList<String> messages = new ArrayList<String>();
+        for (int id: ids) {
+            messages.add(commitTree.get(id).getMessage());
+        }
+        System.out.print(RebasePlan.describe(ids, messages));
+    }
+
+    /** Returns the lines of the todo list in the given file, or of the rest of the
+     *  standard input if the file is "-", or null if the file cannot be read.
+     *  @param file String name of the file */
+    public List<String> readTodo(String file) {
+        if (!file.equals("-")) {
+            try {
+                return Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.out.println("Cannot read the rebase plan " + file + ".");
+                return null;
+            }
+        }
+        ArrayList<String> lines = new ArrayList<String>();
+        while (input.hasNextLine()) {
+            lines.add(input.nextLine());
+        }
+        return lines;
+    }
+    
+    /** Prints the line by line differences between two versions of the tracked files in
+     *  the unified diff format. With no arguments, compares the current commit with the
+     *  working directory. With one, compares the given commit with the working directory,
+     *  and with two, compares the two given commits. A commit is named by a branch or by
+     *  its id. Only the files whose content differs are read.
+     *  @param from String branch or id of the old commit, or null for the current commit
+     *  @param to String branch or id of the new commit, or null for the working directory */
+    public void diff(String from, String to) {
+        Commit fromCommit = from == null ? commitTree.currentCommit() : resolve(from);
+        Commit toCommit = to == null ? null : resolve(to);
+        if (fromCommit == null || (to != null && toCommit == null)) {
+            return;
+        }
+        Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+        try {
+            if (toCommit != null) {
+                for (Map.Entry<String, String> e: diff(fromCommit, toCommit).entrySet()) {
+                    String file = e.getKey();
+                    writeDiff(file, fromCommit.retrieveFile(file), e.getValue(), null, out);
+                }
+            } else {
+                TreeMap<String, String> files = new TreeMap<String, String>(fromCommit.fileMap());
+                for (String file: commitTree.stagedFiles()) {
+                    if (!files.containsKey(file)) {
+                        files.put(file, null);
+                    }
+                }
+                for (Map.Entry<String, String> e: files.entrySet()) {
+                    File working = new File(e.getKey());
+                    String hash = working.exists() ? hashFile(working) : null;
+                    if (hash != null && !hash.equals(e.getValue())) {
+                        writeDiff(e.getKey(), e.getValue(), hash, working, out);
+                    } else if (hash == null && e.getValue() != null) {
+                        writeDiff(e.getKey(), e.getValue(), null, null, out);
+                    }
                 }
             }
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        for (String mod: currModified) {
-            givenModified.remove(mod);
+    }
+
+    /** Writes the diff of one file from the stored content fromHash to the stored content
+     *  toHash, or to the given working file when there is one. A null hash stands for a
+     *  file that does not exist on that side. When either side is large enough to be stored
+     *  in chunks, only their lists of chunks are compared, and the number of chunks of the
+     *  new version that the old one does not have is written instead of a diff. */
+    private void writeDiff(String file, String fromHash, String toHash, File working,
+                           Writer out) throws IOException {
+        List<String> fromChunks = fromHash == null ? null : objectStore.chunks(fromHash);
+        List<String> toChunks = working != null ? objectStore.chunks(working)
+            : toHash == null ? null : objectStore.chunks(toHash);
+        if (fromChunks != null || toChunks != null) {
+            Set<String> old = fromChunks == null ? Set.of() : new HashSet<String>(fromChunks);
+            List<String> chunks = toChunks == null ? List.of() : toChunks;
+            int changed = 0;
+            for (String chunk: chunks) {
+                if (!old.contains(chunk)) {
+                    changed++;
+                }
+            }
+            out.write("Large files " + (fromHash == null ? "/dev/null" : "a/" + file) + " and "
+                      + (toHash == null ? "/dev/null" : "b/" + file) + " differ in " + changed
+                      + " of " + chunks.size() + " chunks\n");
+            return;
         }
-        ArrayList<Commit> shallowCommit = new ArrayList<Commit>();
-        int last = commitTree.globalCount();
-        if (interactive) {
-            shallowCommit = commitTree.findShallowCopyI(splitCommit, givenModified);
+        InputStream from = fromHash == null ? new ByteArrayInputStream(new byte[0])
+                                            : objectStore.open(fromHash);
+        InputStream to;
+        if (working != null) {
+            to = new FileInputStream(working);
+        } else if (toHash != null) {
+            to = objectStore.open(toHash);
         } else {
-            shallowCommit = commitTree.findShallowCopy(splitCommit, givenModified);
+            to = new ByteArrayInputStream(new byte[0]);
         }
-        commitTree.changePointer(branchName);
-        int j = 0;
-        for (int i = shallowCommit.size() - 1; i >= 0; i--) {
-            shallowCommit.get(i).setID(last + j + 1);
-            commitTree.add(shallowCommit.get(i));
-            j += 1;
+        Diff.write(fromHash == null ? "/dev/null" : "a/" + file, from,
+                   toHash == null ? "/dev/null" : "b/" + file, to, out);
+    }
+
+    /** Returns the commit at the head of the branch with the given name, or else the commit
+     *  with the given id. Prints an error message and returns null if there is neither.
+     *  @param name String branch name or commit id */
+    private Commit resolve(String name) {
+        Commit commit = commitTree.branchCommit(name);
+        if (commit == null) {
+            try {
+                commit = commitTree.get(Integer.parseInt(name));
+            } catch (NumberFormatException e) {
+                commit = null;
+            }
         }
-        for (String file: commitTree.currentCommit().files()) {
-            copyFile(commitTree.currentCommit().retrieveFile(file), file);
+        if (commit == null) {
+            System.out.println("No branch or commit with that name exists.");
         }
+        return commit;
     }
-    
+
+    /** Moves all loose objects in the object store into a single compressed pack file
+     *  with an index, so that cold history does not take up one file per version. */
+    public void pack() {
+        try {
+            int count = objectStore.pack();
+            System.out.println("Packed " + count + " objects.");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Prints the value of the setting with the given key, or sets it to value when one
+     *  is given.
+     *  @param key String name of the setting
+     *  @param value String new value, or null to print the current one */
+    public void config(String key, String value) {
+        if (value == null) {
+            String current = config.get(key);
+            if (current != null) {
+                System.out.println(current);
+            }
+            return;
+        }
+        try {
+            config.set(key, value);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Reads the answers to prompts, the todo lists of interactive rebases and the like
+     *  from the given stream from now on, instead of the standard input.
+     *  @param in InputStream to read from */
+    void setInput(InputStream in) {
+        input = new Scanner(in);
+    }
+
     /** Reads input from the user for dangerous commands and returns true only if 
       * this input is the string "yes". */
     public boolean dangerousAnswer() {
-        Scanner scanner = new Scanner(System.in);
         String prompt = "The command you entered may alter the files in your working directory. ";
         prompt += "Uncommitted changes may be lost. Are you sure you want to continue? (yes/no)";
         System.out.println(prompt);
-        String msg = scanner.nextLine();
+        String msg = input.nextLine();
         return msg.equals("yes");
     }
     
+    /** Starts a daemon, or sends the command to the daemon of the repository if one is
+     *  running, or else runs it here. */
     public static void main(String[] args) {
+        if (args.length == 1 && args[0].equals("daemon")) {
+            new Daemon("./.kabgit").serve();
+            return;
+        } else if (Daemon.forward("./.kabgit", args)) {
+            return;
+        }
         KabGit git = new KabGit();
         git.loadTree();
+        git.run(args);
+        git.saveTree();
+    }
+
+    /** Runs the command given by the command line arguments on the loaded commit tree.
+     *  @param args String[] command and its arguments */
+    void run(String[] args) {
         String cmd = "";
         if (args.length > 0) {
             cmd = args[0];
         }
+        if (damaged) {
+            System.out.println("The repository is damaged, so no command was run.");
+            return;
+        }
         try {
             switch (cmd) {
                 case "init": 
-                    git.init(); break;
+                    init(); break;
                 case "add": 
-                    git.add(args[1]); break;
+                    if (args[1].equals("-A")) {
+                        addAll();
+                    } else {
+                        add(Arrays.asList(args).subList(1, args.length));
+                    }
+                    break;
                 case "commit": 
-                    git.commit(args[1]); break;
+                    commit(args[1]); break;
                 case "log": 
-                    git.commitTree.logData(); break;
                 case "global-log": 
-                    git.commitTree.globalLog(); break;
+                    LogOptions options = LogOptions.parse(args, 1);
+                    if (options == null) {
+                        break;
+                    } else if (cmd.equals("log")) {
+                        commitTree.logData(options);
+                    } else {
+                        commitTree.globalLog(options);
+                    }
+                    break;
                 case "checkout":
-                    if (git.dangerousAnswer()) {
+                    if (dangerousAnswer()) {
                         if (args.length == 2) {
-                            git.checkout(args[1]);
+                            checkout(args[1]);
                         } else if (args.length == 3) {
-                            git.checkout(Integer.parseInt(args[1]), args[2]);
+                            checkout(Integer.parseInt(args[1]), args[2]);
                         }
                     }
                     break;
                 case "rm": 
-                    git.remove(args[1]); break;
+                    remove(args[1]); break;
                 case "status": 
-                    git.status(); break;
+                    status(); break;
                 case "find": 
-                    git.commitTree.find(args[1]); break;
+                    if (args[1].equals("--words")) {
+                        commitTree.findWords(args[2]);
+                    } else if (args[1].equals("--text")) {
+                        commitTree.findText(args[2]);
+                    } else {
+                        commitTree.find(args[1]);
+                    }
+                    break;
                 case "branch": 
-                    git.commitTree.createBranch(args[1]); break;
+                    commitTree.createBranch(args[1]); break;
                 case "rm-branch": 
-                    git.commitTree.removeBranch(args[1]); break;
+                    commitTree.removeBranch(args[1]); break;
                 case "reset": 
-                    if (git.dangerousAnswer()) {
-                        git.reset(Integer.parseInt(args[1]));
+                    if (dangerousAnswer()) {
+                        reset(Integer.parseInt(args[1]));
                     }
                     break;
                 case "merge": 
-                    if (git.dangerousAnswer()) {
-                        git.merge(args[1]);
+                    if (dangerousAnswer()) {
+                        merge(args[1]);
                     }
                     break;
                 case "rebase": 
-                    if (git.dangerousAnswer()) {
-                        git.rebase(args[1], false);
+                    if (dangerousAnswer()) {
+                        rebase(args[1], null);
                     }
                     break;
                 case "i-rebase": 
-                    if (git.dangerousAnswer()) {
-                        git.rebase(args[1], true);
-                    }   
+                    if (args.length == 2) {
+                        rebasePlan(args[1]);
+                    } else if (dangerousAnswer()) {
+                        List<String> todo = readTodo(args[2]);
+                        if (todo != null) {
+                            rebase(args[1], todo);
+                        }
+                    }
                     break;
+                case "diff": 
+                    diff(args.length > 1 ? args[1] : null, args.length > 2 ? args[2] : null);
+                    break;
+                case "pack": 
+                    pack(); break;
+                case "config": 
+                    config(args[1], args.length > 2 ? args[2] : null); break;
                 case "add-remote":    
                 default: 
                     break;
             }
-            git.saveTree();
         } catch (IndexOutOfBoundsException e1) {
             e1.printStackTrace();
         } catch (NullPointerException e2) {
@@ -543,5 +1065,3 @@ public class KabGit {
     }
 
 }
-
-
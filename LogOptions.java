@@ -0,0 +1,123 @@
+/** Options of the log and global-log commands, which choose the commits to print and how:
+ *      -n &lt;count&gt;         print at most count commits
+ *      --skip &lt;count&gt;     leave out the first count commits that would be printed
+ *      --since &lt;date&gt;     only commits made on or after the date
+ *      --until &lt;date&gt;     only commits made on or before the date
+ *      --date-order       print global-log by date and time instead of by id
+ *      --oneline          print one tab separated line per commit
+ *      -- &lt;path&gt;          only commits that changed the file or folder at the path
+ *  Dates are given as yyyy-MM-dd or yyyy-MM-dd HH:mm:ss, and a date without a time covers
+ *  the whole day. A one line entry holds the id, the parents separated by a comma or "-"
+ *  for none, the date and time and the message, with tabs, newlines and backslashes in
+ *  the message escaped as \t, \n and \\.
+ */
+public class LogOptions {
+    private static final String DATE = "\\d{4}-\\d{2}-\\d{2}( \\d{2}:\\d{2}(:\\d{2})?)?";
+    private int limit = Integer.MAX_VALUE;
+    private int skip = 0;
+    private String since;
+    private String until;
+    private boolean dateOrder = false;
+    private boolean oneline = false;
+    private String path;
+
+    /** Returns the options in the given arguments from the given position on, or null
+     *  after printing an error message if they are not valid.
+     *  @param args String[] command line arguments
+     *  @param start int position of the first option */
+    public static LogOptions parse(String[] args, int start) {
+        LogOptions options = new LogOptions();
+        try {
+            for (int i = start; i < args.length; i++) {
+                switch (args[i]) {
+                    case "-n":
+                        options.limit = count(args[++i]);
+                        break;
+                    case "--skip":
+                        options.skip = count(args[++i]);
+                        break;
+                    case "--since":
+                        options.since = date(args[++i]);
+                        break;
+                    case "--until":
+                        options.until = date(args[++i]);
+                        break;
+                    case "--date-order":
+                        options.dateOrder = true;
+                        break;
+                    case "--oneline":
+                        options.oneline = true;
+                        break;
+                    case "--":
+                        options.path = args[++i];
+                        break;
+                    default:
+                        System.out.println("Unknown log option " + args[i] + ".");
+                        return null;
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            System.out.println("The log option " + args[args.length - 1] + " needs a value.");
+            return null;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return null;
+        }
+        return options;
+    }
+
+    private static int count(String s) {
+        try {
+            int n = Integer.parseInt(s);
+            if (n >= 0) {
+                return n;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(s + " is not a number of commits.");
+    }
+
+    private static String date(String s) {
+        if (!s.matches(DATE)) {
+            throw new IllegalArgumentException("Dates must look like yyyy-MM-dd or "
+                                               + "yyyy-MM-dd HH:mm:ss, not " + s + ".");
+        }
+        return s;
+    }
+
+    /** Returns true if a commit made at the given date and time is in the chosen range.
+     *  @param dateTime String date and time as yyyy-MM-dd HH:mm:ss */
+    public boolean inRange(String dateTime) {
+        if (since == null && until == null) {
+            return true;
+        } else if (dateTime.isEmpty()) {
+            return false;
+        }
+        String prefix = until == null ? null
+            : dateTime.substring(0, Math.min(until.length(), dateTime.length()));
+        return (since == null || dateTime.compareTo(since) >= 0)
+            && (until == null || prefix.compareTo(until) <= 0);
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    public int skip() {
+        return skip;
+    }
+
+    public boolean dateOrder() {
+        return dateOrder;
+    }
+
+    public boolean oneline() {
+        return oneline;
+    }
+
+    /** Returns the path whose changes are logged, or null for every commit. */
+    public String path() {
+        return path;
+    }
+}
@@ -0,0 +1,118 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Writes many files from the object store into the working directory at once, on a
+ *  bounded pool of threads, so that checkout, reset and rebase can keep a fast disk busy.
+ *  All parent folders are created up front, once each, before any file is written. A file
+ *  that cannot be written does not stop the others, and its error is returned instead.
+ */
+public class Materializer {
+    private ObjectStore store;
+    private StagingIndex index;
+    private int threads;
+
+    /** Creates a materializer that writes up to the given number of files at a time.
+     *  @param s ObjectStore the contents are read from
+     *  @param i StagingIndex that written files are recorded in
+     *  @param t int number of threads, at least 1 */
+    public Materializer(ObjectStore s, StagingIndex i, int t) {
+        store = s;
+        index = i;
+        threads = Math.max(1, t);
+    }
+
+    /** Returns the default number of threads, twice the number of processors since the
+     *  work mostly waits on the disk. */
+    public static int defaultThreads() {
+        return 2 * Runtime.getRuntime().availableProcessors();
+    }
+
+    /** Writes the object with each given hash to its path, replacing existing files, and
+     *  returns the files that could not be written mapped to their errors, sorted by path.
+     *  @param files Map of file names to the content hashes to write */
+    public Map<String, IOException> write(Map<String, String> files) {
+        Map<String, IOException> errors = new TreeMap<String, IOException>();
+        TreeSet<Path> dirs = new TreeSet<Path>();
+        for (String file: files.keySet()) {
+            Path parent = Paths.get(file).getParent();
+            if (parent != null) {
+                dirs.add(parent);
+            }
+        }
+        for (Path dir: dirs) {
+            try {
+                Files.createDirectories(dir);
+            } catch (IOException e) {
+                errors.put(dir.toString(), e);
+            }
+        }
+        if (files.size() <= 1 || threads == 1) {
+            for (Map.Entry<String, String> e: files.entrySet()) {
+                IOException error = writeFile(e.getKey(), e.getValue());
+                if (error != null) {
+                    errors.put(e.getKey(), error);
+                }
+            }
+            return errors;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            List<String> names = new ArrayList<String>();
+            List<Future<IOException>> results = new ArrayList<Future<IOException>>();
+            for (Map.Entry<String, String> e: files.entrySet()) {
+                String file = e.getKey();
+                String hash = e.getValue();
+                names.add(file);
+                results.add(pool.submit(() -> writeFile(file, hash)));
+            }
+            for (int i = 0; i < names.size(); i++) {
+                IOException error;
+                try {
+                    error = results.get(i).get();
+                } catch (ExecutionException e) {
+                    error = new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    error = new IOException(e);
+                }
+                if (error != null) {
+                    errors.put(names.get(i), error);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return errors;
+    }
+
+    /** Writes one file and returns the error that stopped it, or null. */
+    private IOException writeFile(String file, String hash) {
+        try {
+            store.write(hash, Paths.get(file));
+            index.update(file, hash);
+            return null;
+        } catch (IOException e) {
+            return e;
+        }
+    }
+
+    /** Deletes the given files from the working directory.
+     *  @param files Iterable of file names */
+    public void delete(Iterable<String> files) {
+        for (String file: files) {
+            new File(file).delete();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Runs the three-way merges of the files that both sides of a merge changed, on a bounded
+ *  pool of threads, and writes each result into the working directory. A file whose
+ *  merge has conflicts is written with conflict markers, and a binary file that both
+ *  sides changed is left as it is on the current branch and counted as a conflict.
+ */
+public class Merger {
+    private ObjectStore store;
+    private int threads;
+
+    /** Creates a merger that merges up to the given number of files at a time.
+     *  @param s ObjectStore the versions of the files are read from
+     *  @param t int number of threads, at least 1 */
+    public Merger(ObjectStore s, int t) {
+        store = s;
+        threads = Math.max(1, t);
+    }
+
+    /** Merges each given file and writes the result to its path.
+     *  @param files Map of file names to the content hashes of their base, ours and theirs
+     *               versions, where a null base stands for a file both sides added
+     *  @param oursName String label of the current branch in conflict markers
+     *  @param theirsName String label of the merged branch in conflict markers */
+    public Result merge(Map<String, String[]> files, String oursName, String theirsName) {
+        Result res = new Result();
+        if (files.isEmpty()) {
+            return res;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, files.size()));
+        try {
+            List<String> names = new ArrayList<String>();
+            List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+            for (Map.Entry<String, String[]> e: files.entrySet()) {
+                String file = e.getKey();
+                String[] hashes = e.getValue();
+                names.add(file);
+                results.add(pool.submit(() -> mergeFile(file, hashes, oursName, theirsName)));
+            }
+            for (int i = 0; i < names.size(); i++) {
+                try {
+                    if (results.get(i).get()) {
+                        res.conflicts.add(names.get(i));
+                    }
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    res.errors.put(names.get(i), cause instanceof IOException
+                                   ? (IOException) cause : new IOException(cause));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    res.errors.put(names.get(i), new IOException(e));
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+        return res;
+    }
+
+    /** Merges one file and returns true if it has conflicts. A file stored in chunks is
+     *  treated like a binary file, and left as it is on the current branch, without
+     *  reading any of its versions. */
+    private boolean mergeFile(String file, String[] hashes, String oursName, String theirsName)
+            throws IOException {
+        for (String hash: hashes) {
+            if (hash != null && store.chunks(hash) != null) {
+                return true;
+            }
+        }
+        InputStream base = hashes[0] == null ? new ByteArrayInputStream(new byte[0])
+                                             : store.open(hashes[0]);
+        Diff.Merged merged = Diff.merge(base, store.open(hashes[1]), store.open(hashes[2]),
+                                        oursName, theirsName);
+        if (merged == null) {
+            return true;
+        }
+        Files.write(Paths.get(file), merged.content());
+        return merged.conflict();
+    }
+
+    /** Files whose merges had conflicts or could not be written, sorted by name. */
+    public static class Result {
+        private TreeSet<String> conflicts = new TreeSet<String>();
+        private TreeMap<String, IOException> errors = new TreeMap<String, IOException>();
+
+        public TreeSet<String> conflicts() {
+            return conflicts;
+        }
+
+        public TreeMap<String, IOException> errors() {
+            return errors;
+        }
+    }
+}
@@ -0,0 +1,536 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** Inverted index over commit messages, used by find. Each message is indexed under its
+ *  words and under every run of three characters in it, both lower cased, so that commits
+ *  can be looked up by the words they mention or by any text of three or more characters
+ *  they contain. A word is a run of letters, digits, '_' and '-', so TICKET-123 is one word.
+ *  Terms are stored with a leading 'w' for words and 't' for runs of three characters.
+ *  The index only narrows the search: it returns the commits that have the rarest terms of
+ *  a query, and the caller checks the message of each one, so a lookup reads only the
+ *  posting lists of those terms and never the whole index.
+ *  New commits are appended to commits/search/pending, and every FLUSH_SIZE of them are
+ *  written out as an immutable segment. Segments are merged whenever the newest one is at
+ *  least as large as the one before it, so there are only ever a logarithmic number of them
+ *  and each commit is rewritten a logarithmic number of times. commits/search/segments
+ *  lists the segments from oldest to newest and is replaced atomically.
+ *  Segment layout: the posting lists, each the increasing commit ids as varint deltas,
+ *  then the terms in byte order, then for each term the offset of its key, the number of
+ *  ids and the offset of its list, and last the offset and length of the keys, the offset
+ *  of the term table and the number of terms. Segments are mapped into memory and terms
+ *  are found by binary search.
+ */
+public class MessageIndex {
+    private static final int FLUSH_SIZE = 1024;
+    private static final int TERM_SIZE = 16;
+    private static final int TRAILER_SIZE = 24;
+    private static final int WIDEN = 8;
+    private File dir;
+    private File segmentsFile;
+    private File pendingFile;
+    private boolean loaded = false;
+    private ArrayList<Segment> segments = new ArrayList<Segment>();
+    private ArrayList<Integer> pendingIds = new ArrayList<Integer>();
+    private ArrayList<String> pendingMessages = new ArrayList<String>();
+    private HashMap<String, ArrayList<Integer>> pendingTerms =
+        new HashMap<String, ArrayList<Integer>>();
+
+    /** Creates an index stored in the commits folder of the given metadata directory.
+     *  @param root String path of the .kabgit folder */
+    public MessageIndex(String root) {
+        dir = new File(new File(root, "commits"), "search");
+        segmentsFile = new File(dir, "segments");
+        pendingFile = new File(dir, "pending");
+    }
+
+    /** Returns true if the index has been created, which happens with the first commit. */
+    public synchronized boolean exists() {
+        return segmentsFile.exists();
+    }
+
+    /** Indexes the message of the commit with the given id. Ids are expected to increase.
+     *  @param id int global commit id
+     *  @param message String commit message */
+    public synchronized void add(int id, String message) throws IOException {
+        load();
+        dir.mkdirs();
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(pendingFile, true))) {
+            out.writeInt(id);
+            CommitStore.writeMessage(out, message);
+        }
+        addPending(id, message);
+        if (pendingIds.size() >= FLUSH_SIZE) {
+            flush();
+        }
+    }
+
+    /** Throws the index away and indexes every commit in the given graph, in order.
+     *  @param graph CommitGraph with the messages of the commits */
+    public synchronized void rebuild(CommitGraph graph) throws IOException {
+        load();
+        for (Segment segment: segments) {
+            segment.file.delete();
+        }
+        segments.clear();
+        clearPending();
+        writeSegments();
+        for (int id = 0; id < graph.size(); id++) {
+            if (graph.contains(id)) {
+                addPending(id, graph.message(id));
+                if (pendingIds.size() >= FLUSH_SIZE) {
+                    flush();
+                }
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(pendingFile)))) {
+            for (int i = 0; i < pendingIds.size(); i++) {
+                out.writeInt(pendingIds.get(i));
+                CommitStore.writeMessage(out, pendingMessages.get(i));
+            }
+        }
+    }
+
+    /** Returns the words of the given text, lower cased, each once, as index terms. */
+    public static List<String> words(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        int start = -1;
+        for (int i = 0; i <= lower.length(); i++) {
+            boolean word = i < lower.length() && isWordChar(lower.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                int end = i;
+                while (start < end && lower.charAt(start) == '-') {
+                    start++;
+                }
+                while (end > start && lower.charAt(end - 1) == '-') {
+                    end--;
+                }
+                if (start < end) {
+                    terms.add("w" + lower.substring(start, end));
+                }
+                start = -1;
+            }
+        }
+        return new ArrayList<String>(terms);
+    }
+
+    /** Returns the runs of three characters of the given text, lower cased, each once, as
+     *  index terms. */
+    public static List<String> trigrams(String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<String>();
+        String lower = text.toLowerCase(Locale.ROOT);
+        for (int i = 0; i + 3 <= lower.length(); i++) {
+            terms.add("t" + lower.substring(i, i + 3));
+        }
+        return new ArrayList<String>(terms);
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-';
+    }
+
+    /** Returns the ids, in increasing order, of the commits whose messages may have all of
+     *  the given terms. Every commit that has them is returned, but so may others. Only
+     *  the lists of the rarest terms of each segment are read, along with every commit that
+     *  is not in a segment yet.
+     *  @param terms Collection of terms from words or trigrams, at least one */
+    public synchronized int[] candidates(Collection<String> terms) {
+        load();
+        byte[][] keys = new byte[terms.size()][];
+        int k = 0;
+        for (String term: terms) {
+            keys[k++] = term.getBytes(StandardCharsets.UTF_8);
+        }
+        int[] res = new int[16];
+        int size = 0;
+        for (Segment segment: segments) {
+            int[] ids = segment.candidates(keys);
+            res = grow(res, size + ids.length);
+            System.arraycopy(ids, 0, res, size, ids.length);
+            size += ids.length;
+        }
+        List<Integer> pending = null;
+        for (String term: terms) {
+            List<Integer> ids = pendingTerms.get(term);
+            if (ids == null) {
+                pending = null;
+                break;
+            } else if (pending == null || ids.size() < pending.size()) {
+                pending = ids;
+            }
+        }
+        if (pending != null) {
+            res = grow(res, size + pending.size());
+            for (int id: pending) {
+                res[size++] = id;
+            }
+        }
+        Arrays.sort(res, 0, size);
+        int unique = 0;
+        for (int i = 0; i < size; i++) {
+            if (unique == 0 || res[unique - 1] != res[i]) {
+                res[unique++] = res[i];
+            }
+        }
+        return Arrays.copyOf(res, unique);
+    }
+
+    /** Writes the pending commits out as a new segment and merges segments as needed. */
+    private void flush() throws IOException {
+        ArrayList<String> terms = new ArrayList<String>(pendingTerms.keySet());
+        byte[][] keys = new byte[terms.size()][];
+        Integer[] order = new Integer[terms.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = terms.get(i).getBytes(StandardCharsets.UTF_8);
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> compare(keys[x], keys[y]));
+        SegmentWriter writer = new SegmentWriter(newSegmentFile());
+        for (int i: order) {
+            ArrayList<Integer> list = pendingTerms.get(terms.get(i));
+            int[] ids = new int[list.size()];
+            for (int n = 0; n < ids.length; n++) {
+                ids[n] = list.get(n);
+            }
+            writer.add(keys[i], ids, ids.length);
+        }
+        segments.add(writer.finish(pendingIds.size()));
+        while (segments.size() >= 2 && segments.get(segments.size() - 1).commits
+                                       >= segments.get(segments.size() - 2).commits) {
+            Segment newer = segments.remove(segments.size() - 1);
+            Segment older = segments.remove(segments.size() - 1);
+            segments.add(merge(older, newer));
+        }
+        writeSegments();
+        for (File file: dir.listFiles()) {
+            if (file.getName().endsWith(".seg") && !isListed(file)) {
+                file.delete();
+            }
+        }
+        clearPending();
+    }
+
+    /** Keeps the given commit in memory until it is written out in a segment. */
+    private void addPending(int id, String message) {
+        pendingIds.add(id);
+        pendingMessages.add(message);
+        List<String> terms = words(message);
+        terms.addAll(trigrams(message));
+        for (String term: terms) {
+            ArrayList<Integer> ids = pendingTerms.get(term);
+            if (ids == null) {
+                ids = new ArrayList<Integer>();
+                pendingTerms.put(term, ids);
+            }
+            ids.add(id);
+        }
+    }
+
+    private void clearPending() {
+        pendingIds.clear();
+        pendingMessages.clear();
+        pendingTerms.clear();
+        pendingFile.delete();
+    }
+
+    /** Merges two segments into a new one, term by term in byte order. */
+    private Segment merge(Segment older, Segment newer) throws IOException {
+        SegmentWriter writer = new SegmentWriter(newSegmentFile());
+        int i = 0;
+        int j = 0;
+        while (i < older.terms || j < newer.terms) {
+            int cmp = i == older.terms ? 1 : j == newer.terms ? -1
+                      : compare(older.key(i), newer.key(j));
+            if (cmp < 0) {
+                writer.add(older.key(i), older.ids(i), older.count(i));
+                i++;
+            } else if (cmp > 0) {
+                writer.add(newer.key(j), newer.ids(j), newer.count(j));
+                j++;
+            } else {
+                int[] a = older.ids(i);
+                int[] b = newer.ids(j);
+                int[] ids = new int[a.length + b.length];
+                System.arraycopy(a, 0, ids, 0, a.length);
+                System.arraycopy(b, 0, ids, a.length, b.length);
+                Arrays.sort(ids);
+                writer.add(older.key(i), ids, ids.length);
+                i++;
+                j++;
+            }
+        }
+        return writer.finish(older.commits + newer.commits);
+    }
+
+    private File newSegmentFile() {
+        dir.mkdirs();
+        long n = System.nanoTime();
+        File file;
+        while ((file = new File(dir, Long.toHexString(n) + ".seg")).exists()) {
+            n++;
+        }
+        return file;
+    }
+
+    private boolean isListed(File file) {
+        for (Segment segment: segments) {
+            if (segment.file.getName().equals(file.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Replaces the list of segments with the current one. */
+    private void writeSegments() throws IOException {
+        dir.mkdirs();
+        File temp = new File(dir, "segments.tmp");
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(temp))) {
+            out.writeInt(segments.size());
+            for (Segment segment: segments) {
+                out.writeUTF(segment.file.getName());
+                out.writeInt(segment.commits);
+            }
+        }
+        Files.move(temp.toPath(), segmentsFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+    }
+
+    /** Maps the listed segments into memory and reads the pending commits, if that has not
+     *  happened yet. */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try {
+            if (segmentsFile.exists()) {
+                try (DataInputStream in = new DataInputStream(new FileInputStream(segmentsFile))) {
+                    int count = in.readInt();
+                    for (int i = 0; i < count; i++) {
+                        File file = new File(dir, in.readUTF());
+                        segments.add(new Segment(file, in.readInt()));
+                    }
+                }
+            }
+            if (pendingFile.exists()) {
+                try (DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(new FileInputStream(pendingFile)))) {
+                    while (true) {
+                        int id;
+                        String message;
+                        try {
+                            id = in.readInt();
+                            message = CommitStore.readMessage(in);
+                        } catch (EOFException e) {
+                            break;
+                        }
+                        addPending(id, message);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int[] grow(int[] a, int size) {
+        return size <= a.length ? a : Arrays.copyOf(a, Math.max(size, 2 * a.length));
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /** One immutable segment, mapped into memory. */
+    private static class Segment {
+        private File file;
+        private int commits;
+        private ByteBuffer buf;
+        private int terms;
+        private int keys;
+        private int keysLength;
+        private int table;
+
+        Segment(File f, int c) throws IOException {
+            file = f;
+            commits = c;
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            int trailer = buf.limit() - TRAILER_SIZE;
+            keys = (int) buf.getLong(trailer);
+            keysLength = buf.getInt(trailer + 8);
+            table = (int) buf.getLong(trailer + 12);
+            terms = buf.getInt(trailer + 20);
+        }
+
+        /** Returns the ids of the commits in this segment that have the rarest of the given
+         *  terms: the list of the rarest one, intersected with the lists of the others as
+         *  long as they are at most WIDEN times longer than what is left. */
+        int[] candidates(byte[][] query) {
+            int[] found = new int[query.length];
+            for (int i = 0; i < query.length; i++) {
+                found[i] = find(query[i]);
+                if (found[i] < 0) {
+                    return new int[0];
+                }
+            }
+            Integer[] order = new Integer[query.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = found[i];
+            }
+            Arrays.sort(order, (x, y) -> Integer.compare(count(x), count(y)));
+            int[] res = ids(order[0]);
+            for (int i = 1; i < order.length && res.length > 0; i++) {
+                if (count(order[i]) > (long) WIDEN * res.length) {
+                    break;
+                }
+                res = intersect(res, ids(order[i]));
+            }
+            return res;
+        }
+
+        /** Returns the position of the given term in the term table, or -1. */
+        int find(byte[] key) {
+            int lo = 0;
+            int hi = terms - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                int cmp = compare(key(mid), key);
+                if (cmp < 0) {
+                    lo = mid + 1;
+                } else if (cmp > 0) {
+                    hi = mid - 1;
+                } else {
+                    return mid;
+                }
+            }
+            return -1;
+        }
+
+        byte[] key(int i) {
+            int start = buf.getInt(table + i * TERM_SIZE);
+            int end = i + 1 < terms ? buf.getInt(table + (i + 1) * TERM_SIZE) : keysLength;
+            byte[] key = new byte[end - start];
+            buf.get(keys + start, key);
+            return key;
+        }
+
+        int count(int i) {
+            return buf.getInt(table + i * TERM_SIZE + 4);
+        }
+
+        int[] ids(int i) {
+            int[] ids = new int[count(i)];
+            int position = (int) buf.getLong(table + i * TERM_SIZE + 8);
+            int id = -1;
+            for (int n = 0; n < ids.length; n++) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = buf.get(position++);
+                    delta |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while (b < 0);
+                id += delta;
+                ids[n] = id;
+            }
+            return ids;
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] res = new int[Math.min(a.length, b.length)];
+            int n = 0;
+            int i = 0;
+            int j = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    res[n++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(res, n);
+        }
+    }
+
+    /** Writes a segment from terms given in byte order. */
+    private static class SegmentWriter {
+        private File file;
+        private DataOutputStream out;
+        private ByteArrayOutputStream keys = new ByteArrayOutputStream();
+        private ByteArrayOutputStream table = new ByteArrayOutputStream();
+        private DataOutputStream tableOut = new DataOutputStream(table);
+        private long position = 0;
+        private int terms = 0;
+
+        SegmentWriter(File f) throws IOException {
+            file = f;
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        /** Adds a term with the first count of the given increasing ids. */
+        void add(byte[] key, int[] ids, int count) throws IOException {
+            tableOut.writeInt(keys.size());
+            tableOut.writeInt(count);
+            tableOut.writeLong(position);
+            keys.write(key);
+            int last = -1;
+            for (int i = 0; i < count; i++) {
+                int delta = ids[i] - last;
+                last = ids[i];
+                while ((delta & ~0x7f) != 0) {
+                    out.write((delta & 0x7f) | 0x80);
+                    delta >>>= 7;
+                    position++;
+                }
+                out.write(delta);
+                position++;
+            }
+            terms++;
+        }
+
+        /** Writes the terms and the trailer and returns the finished segment. */
+        Segment finish(int commits) throws IOException {
+            long keysOffset = position;
+            keys.writeTo(out);
+            long tableOffset = keysOffset + keys.size();
+            table.writeTo(out);
+            out.writeLong(keysOffset);
+            out.writeInt(keys.size());
+            out.writeLong(tableOffset);
+            out.writeInt(terms);
+            out.close();
+            return new Segment(file, commits);
+        }
+    }
+}
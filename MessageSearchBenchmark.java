@@ -0,0 +1,73 @@
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/** Times find over a MessageIndex of a million synthetic commit messages like "Fix parser
+ *  for TICKET-1234". It indexes the messages one add at a time, as commits do, opens the
+ *  index again from disk, and runs word and substring queries, checking each candidate
+ *  against its message as find does. Prints the hits, the candidates and the median time
+ *  of each query after a warm-up. Run it with
+ *      java MessageSearchBenchmark [number of messages]
+ */
+public class MessageSearchBenchmark {
+    private static final int MESSAGES = 1000000;
+    private static final int RUNS = 5;
+    private static final String[] VERBS = {"Fix", "Add", "Refactor", "Update", "Remove",
+                                           "Document", "Speed up", "Clean up"};
+    private static final String[] NOUNS = {"parser", "checkout", "merge", "rebase", "index",
+                                           "log output", "packing", "config", "tests", "diff"};
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : MESSAGES;
+        File root = Bench.tempDir("kabgit-search");
+        try {
+            Random random = new Random(7);
+            String[] messages = new String[count];
+            for (int i = 0; i < count; i++) {
+                messages[i] = VERBS[random.nextInt(VERBS.length)] + " "
+                    + NOUNS[random.nextInt(NOUNS.length)] + " for TICKET-" + random.nextInt(200000);
+            }
+            long start = System.nanoTime();
+            MessageIndex index = new MessageIndex(root.getPath());
+            for (int i = 0; i < count; i++) {
+                index.add(i, messages[i]);
+            }
+            System.out.println("Indexed " + count + " messages in " + Bench.millis(start)
+                               + " ms.");
+
+            index = new MessageIndex(root.getPath());
+            String[][] queries = {{"--words", "TICKET-123"}, {"--words", "fix parser ticket-4242"},
+                                  {"--text", "ket-1234"}, {"--text", "speed up re"},
+                                  {"--text", "ICKET-99"}};
+            for (String[] query: queries) {
+                boolean words = query[0].equals("--words");
+                List<String> terms = words ? MessageIndex.words(query[1])
+                                           : MessageIndex.trigrams(query[1]);
+                String lower = query[1].toLowerCase(Locale.ROOT);
+                long[] times = new long[RUNS];
+                int hits = 0;
+                int candidates = 0;
+                for (int run = -1; run < RUNS; run++) {
+                    start = System.nanoTime();
+                    int[] ids = index.candidates(terms);
+                    hits = 0;
+                    for (int id: ids) {
+                        if (words ? MessageIndex.words(messages[id]).containsAll(terms)
+                                  : messages[id].toLowerCase(Locale.ROOT).contains(lower)) {
+                            hits++;
+                        }
+                    }
+                    candidates = ids.length;
+                    if (run >= 0) {
+                        times[run] = (System.nanoTime() - start) / 1000;
+                    }
+                }
+                System.out.printf("%-7s %-24s %6d hits %8d candidates %8d us%n", query[0],
+                                  query[1], hits, candidates, Bench.median(times));
+            }
+        } finally {
+            Bench.delete(root);
+        }
+    }
+}
@@ -0,0 +1,846 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/** Content addressable store for the contents of committed files. Every version of a file
+ *  is saved exactly once under .kabgit/objects, named after the SHA-256 hash of its bytes,
+ *  so identical content across commits, branches and paths shares a single object.
+ *  Loose objects are laid out git style as objects/ab/cdef..., with the first two hex digits
+ *  of the hash as the directory name, and are Deflate compressed. Each object starts with
+ *  a type byte followed by its payload. The pack method moves all loose objects into a
+ *  single PackFile under objects/pack.
+ *  A new version of a file is first stored whole, and put notes in objects/bases which
+ *  object was its previous version. When the loose objects are packed, each noted version
+ *  is stored as a Delta against its previous version instead, if that is much smaller.
+ *  So storing a file never needs its whole content in memory, and only pack does. Chains
+ *  of deltas are capped at MAX_DEPTH, and recently rebuilt contents are kept in a small
+ *  cache so that reading the next version along a chain does not rebuild it from the start.
+ *  A file larger than CHUNK_LIMIT is instead cut into chunks by the Chunker and stored as
+ *  a list of its chunks, each of them a blob addressed by its own hash. A small edit to a
+ *  large file then stores only the chunks around the edit, and identical chunks are shared
+ *  across versions and files. The list is addressed by the hash of the whole file, like
+ *  any other file, and reading it streams its chunks one after another. Since such a file
+ *  is never delta encoded, chunking is also what bounds the memory a delta takes: its base
+ *  and its target are each at most CHUNK_LIMIT bytes. Raw objects, which are not chunked,
+ *  are never used as a base.
+ *  In raw mode, new files are instead stored whole and uncompressed under objects/raw, and
+ *  made read-only. A file of at least REFLINK_MIN bytes is copied in and checked out as a
+ *  reflink, a copy-on-write clone that shares its blocks with the source until either is
+ *  written, where the file system supports them, as Btrfs and XFS do. Other files, and
+ *  all files elsewhere, are copied by the kernel with FileChannel.transferTo, so their
+ *  bytes never pass through the JVM either. A raw object is never hard linked into the
+ *  working directory, since an edit to the working file would then change the stored
+ *  object too. The size and modification time of each raw object are recorded in
+ *  objects/raw/stamps when it is stored. A raw object whose size or time no longer match
+ *  is hashed again before it is used, and reported as corrupt if its content changed.
+ *  Raw objects are never packed.
+ */
+public class ObjectStore {
+    /** Type byte of an object whose payload is the full content of a file. */
+    public static final int BLOB = 1;
+    /** Type byte of an object whose payload is the hash of its base, its depth in the delta
+     *  chain and the Delta instructions that rebuild it from the base. */
+    public static final int DELTA = 2;
+    /** Type byte of an object whose payload is a folder listing written by TreeStore. */
+    public static final int TREE = 3;
+    /** Type byte of an object whose payload lists, in order, the hash and the length of
+     *  each chunk of a large file. Each chunk is stored as a blob of its own. */
+    public static final int CHUNKS = 4;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int HASH_SIZE = 32;
+    private static final int MAX_DEPTH = 16;
+    private static final long CHUNK_LIMIT = 8 * 1024 * 1024;
+    private static final long CACHE_LIMIT = 64 * 1024 * 1024;
+    private static final long REFLINK_MIN = 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> INPUT =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<ByteBuffer> OUTPUT =
+        ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<byte[]> WINDOW =
+        ThreadLocal.withInitial(() -> new byte[2 * Chunker.MAX_SIZE]);
+    private LinkedHashMap<String, byte[]> cache = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+    private long cacheSize = 0;
+    private File objectsDir;
+    private File packDir;
+    private File rawDir;
+    private File basesFile;
+    private File stampsFile;
+    private HashMap<String, String> stamps;
+    private boolean rawMode = false;
+    private volatile boolean reflinks = true;
+    private List<PackFile> packs;
+
+    /** Creates a store rooted at the objects folder of the given metadata directory.
+     *  @param root String path of the .kabgit folder */
+    public ObjectStore(String root) {
+        objectsDir = new File(root, "objects");
+        packDir = new File(objectsDir, "pack");
+        rawDir = new File(objectsDir, "raw");
+        basesFile = new File(objectsDir, "bases");
+        stampsFile = new File(rawDir, "stamps");
+    }
+
+    /** Sets whether new files are stored uncompressed and checked out as reflinks or with
+     *  transferTo.
+     *  @param r boolean true for raw mode */
+    public void setRaw(boolean r) {
+        rawMode = r;
+    }
+
+    /** Returns the hex SHA-256 hash of the contents of the given file.
+     *  @param file File whose contents are hashed */
+    public String hash(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, n);
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    /** Stores the contents of the given file and returns the hash that addresses them.
+     *  If an object with the same hash already exists, only the hash is computed.
+     *  @param file File to store */
+    public String put(File file) throws IOException {
+        return put(file, null);
+    }
+
+    /** Stores the contents of the given file and returns the hash that addresses them,
+     *  noting the hash base of its previous version, if any, for pack. The file is read
+     *  only once: it streams through a direct buffer of BUFFER_SIZE bytes, and each block
+     *  is both hashed and compressed into a temporary file. That file becomes the object
+     *  once the hash is known, or is dropped if an object with the same hash already
+     *  exists. A file larger than CHUNK_LIMIT is stored in chunks, and is also read once.
+     *  In raw mode the file is hashed, and then cloned or copied by the kernel.
+     *  @param file File to store
+     *  @param base String hash of the previous version of the file, or null */
+    public String put(File file, String base) throws IOException {
+        if (rawMode) {
+            String hash = hash(file);
+            if (!contains(hash)) {
+                writeRaw(hash, file);
+            }
+            return hash;
+        }
+        if (file.length() > CHUNK_LIMIT) {
+            return chunk(file, null, true);
+        }
+        return stream(file, base);
+    }
+
+    /** Cuts the given file into chunks, adds the hash of each chunk to the given list if
+     *  there is one, and returns the hash of the whole file. If store is true, every chunk
+     *  that the store does not hold yet is stored, and so is the list of the chunks. The
+     *  file is read once, through a window of twice the largest chunk. */
+    private String chunk(File file, List<String> chunks, boolean store) throws IOException {
+        MessageDigest whole = newDigest();
+        MessageDigest part = newDigest();
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        DataOutputStream list = new DataOutputStream(manifest);
+        byte[] window = WINDOW.get();
+        try (InputStream in = new FileInputStream(file)) {
+            int start = 0;
+            int end = 0;
+            boolean eof = false;
+            while (true) {
+                if (!eof && end - start < Chunker.MAX_SIZE) {
+                    System.arraycopy(window, start, window, 0, end - start);
+                    end -= start;
+                    start = 0;
+                    int n = 0;
+                    while (end < window.length && (n = in.read(window, end, window.length - end)) >= 0) {
+                        end += n;
+                    }
+                    eof = n < 0;
+                }
+                if (start == end) {
+                    break;
+                }
+                int length = Chunker.cut(window, start, end - start);
+                whole.update(window, start, length);
+                part.update(window, start, length);
+                byte[] hash = part.digest();
+                if (store && !contains(toHex(hash))) {
+                    writeWhole(toHex(hash), BLOB, window, start, length);
+                }
+                if (chunks != null) {
+                    chunks.add(toHex(hash));
+                }
+                list.write(hash);
+                list.writeInt(length);
+                start += length;
+            }
+        }
+        String hash = toHex(whole.digest());
+        if (store && !contains(hash)) {
+            writeWhole(hash, CHUNKS, manifest.toByteArray(), 0, manifest.size());
+        }
+        return hash;
+    }
+
+    /** Returns the hashes of the chunks of the given file, in order, as put would cut it if
+     *  it is larger than CHUNK_LIMIT, or null if it is not. Nothing is stored.
+     *  @param file File in the working directory */
+    public List<String> chunks(File file) throws IOException {
+        if (file.length() <= CHUNK_LIMIT) {
+            return null;
+        }
+        List<String> chunks = new ArrayList<String>();
+        chunk(file, chunks, false);
+        return chunks;
+    }
+
+    /** Returns the hashes of the chunks of the object with the given hash, in order, or null
+     *  if it is not stored in chunks. Only the list is read.
+     *  @param hash String hash of the stored object */
+    public List<String> chunks(String hash) throws IOException {
+        if (locateRaw(hash).exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new BufferedInputStream(openRaw(hash))))) {
+            if (in.read() != CHUNKS) {
+                return null;
+            }
+            List<String> chunks = new ArrayList<String>();
+            byte[] chunk = new byte[HASH_SIZE];
+            while (in.read(chunk, 0, 1) > 0) {
+                in.readFully(chunk, 1, HASH_SIZE - 1);
+                in.readInt();
+                chunks.add(toHex(chunk));
+            }
+            return chunks;
+        }
+    }
+
+    /** Stores the given file as a whole blob, reading it once, and returns its hash. If the
+     *  blob is new, base is noted as its previous version. */
+    private String stream(File file, String base) throws IOException {
+        MessageDigest digest = newDigest();
+        Deflater deflater = DEFLATER.get();
+        deflater.reset();
+        ByteBuffer in = INPUT.get().clear();
+        ByteBuffer out = OUTPUT.get().clear();
+        Path temp = Files.createTempFile(objectsDir.toPath(), "tmp", null);
+        try {
+            try (FileChannel source = FileChannel.open(file.toPath(), READ);
+                 FileChannel dest = FileChannel.open(temp, WRITE)) {
+                in.put((byte) BLOB);
+                int skip = 1;
+                boolean end = false;
+                while (!end) {
+                    end = source.read(in) < 0;
+                    in.flip();
+                    in.position(skip);
+                    digest.update(in);
+                    in.position(0);
+                    deflater.setInput(in);
+                    if (end) {
+                        deflater.finish();
+                    }
+                    while (!deflater.needsInput() || (end && !deflater.finished())) {
+                        deflater.deflate(out);
+                        out.flip();
+                        while (out.hasRemaining()) {
+                            dest.write(out);
+                        }
+                        out.clear();
+                    }
+                    in.clear();
+                    skip = 0;
+                }
+            }
+            String hash = toHex(digest.digest());
+            if (!contains(hash)) {
+                File object = locate(hash);
+                object.getParentFile().mkdirs();
+                Files.move(temp, object.toPath(), ATOMIC_MOVE);
+                if (base != null && !base.equals(hash)) {
+                    noteBase(hash, base);
+                }
+            }
+            return hash;
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Appends to the bases file that the blob with the given hash is a new version of the
+     *  object with the hash base. */
+    private synchronized void noteBase(String hash, String base) throws IOException {
+        try (OutputStream out = new FileOutputStream(basesFile, true)) {
+            out.write((hash + " " + base + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    /** Stores each loose blob noted in the bases file as a delta against its previous
+     *  version, if the delta is less than half its size. The notes are in the order the
+     *  versions were stored, so a version is always encoded after the one it is based on,
+     *  and a chain only ever grows at its end. */
+    private void encodeDeltas() throws IOException {
+        if (!basesFile.exists()) {
+            return;
+        }
+        for (String line: Files.readAllLines(basesFile.toPath(), StandardCharsets.US_ASCII)) {
+            String[] note = line.split(" ");
+            if (note.length != 2 || !locate(note[0]).exists() || !contains(note[1])
+                    || depth(note[0]) != 0) {
+                continue;
+            }
+            int depth = depth(note[1]);
+            if (depth < 0 || depth >= MAX_DEPTH) {
+                continue;
+            }
+            byte[] target = read(note[0]);
+            byte[] delta = Delta.encode(read(note[1]), target);
+            if (delta.length < target.length / 2) {
+                writeDelta(note[0], note[1], depth + 1, delta);
+            }
+        }
+    }
+
+    /** Stores the given bytes as a whole object of the given type and returns the hash that
+     *  addresses them. The hash covers the type byte as well as the bytes, so an object that
+     *  is not a file never shares a hash with one.
+     *  @param type int type byte of the object
+     *  @param content byte[] payload of the object */
+    public String put(int type, byte[] content) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update((byte) type);
+        String hash = toHex(digest.digest(content));
+        if (!contains(hash)) {
+            writeWhole(hash, type, content, 0, content.length);
+        }
+        return hash;
+    }
+
+    private void writeWhole(String hash, int type, byte[] content, int off, int len)
+            throws IOException {
+        File object = locate(hash);
+        object.getParentFile().mkdirs();
+        Path temp = Files.createTempFile(objectsDir.toPath(), "tmp", null);
+        try {
+            try (OutputStream out = new DeflaterOutputStream(new FileOutputStream(temp.toFile()))) {
+                out.write(type);
+                out.write(content, off, len);
+            }
+            Files.move(temp, object.toPath(), ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void writeDelta(String hash, String base, int depth, byte[] delta) throws IOException {
+        File object = locate(hash);
+        object.getParentFile().mkdirs();
+        Path temp = Files.createTempFile(objectsDir.toPath(), "tmp", null);
+        try {
+            try (DataOutputStream out = new DataOutputStream(
+                    new DeflaterOutputStream(new FileOutputStream(temp.toFile())))) {
+                out.write(DELTA);
+                out.write(fromHex(base));
+                out.writeInt(depth);
+                out.write(delta);
+            }
+            Files.move(temp, object.toPath(), ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Stores the given file uncompressed as the raw object with the given hash, cloning or
+     *  copying it without passing its bytes through the JVM, and records its stamp. The
+     *  object keeps the permissions of the file, minus write access. */
+    private void writeRaw(String hash, File file) throws IOException {
+        File object = locateRaw(hash);
+        object.getParentFile().mkdirs();
+        Path temp = Files.createTempFile(objectsDir.toPath(), "tmp", null);
+        try {
+            copy(file.toPath(), temp);
+            try {
+                Set<PosixFilePermission> perms = Files.getPosixFilePermissions(file.toPath());
+                perms.remove(PosixFilePermission.OWNER_WRITE);
+                perms.remove(PosixFilePermission.GROUP_WRITE);
+                perms.remove(PosixFilePermission.OTHERS_WRITE);
+                Files.setPosixFilePermissions(temp, perms);
+            } catch (UnsupportedOperationException e) {
+                temp.toFile().setReadOnly();
+            }
+            Files.move(temp, object.toPath(), ATOMIC_MOVE);
+            stamp(hash, object);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /** Copies the file at source over the file at dest, creating it if needed. A file of
+     *  at least REFLINK_MIN bytes is cloned if the file system allows it, and anything else
+     *  is copied with transferTo. An existing dest keeps its permissions. */
+    private void copy(Path source, Path dest) throws IOException {
+        if (Files.size(source) >= REFLINK_MIN) {
+            if (!Files.exists(dest)) {
+                Files.createFile(dest);
+            }
+            if (reflink(source, dest)) {
+                return;
+            }
+        }
+        try (FileChannel in = FileChannel.open(source, READ);
+             FileChannel out = FileChannel.open(dest, WRITE, CREATE, TRUNCATE_EXISTING)) {
+            transfer(in, out);
+        }
+    }
+
+    /** Clones the file at source over the existing file at dest with cp --reflink=always,
+     *  which uses the FICLONE ioctl that Java has no API for, and returns true, or returns
+     *  false if it could not. After the first failure, reflinks are not tried again. */
+    private boolean reflink(Path source, Path dest) {
+        if (!reflinks) {
+            return false;
+        }
+        try {
+            Process cp = new ProcessBuilder("cp", "--reflink=always", "--",
+                                            source.toString(), dest.toString())
+                .redirectErrorStream(true).redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .start();
+            if (cp.waitFor() == 0) {
+                return true;
+            }
+        } catch (IOException e) {
+            // No cp to run, so no reflinks either.
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        reflinks = false;
+        return false;
+    }
+
+    private static void transfer(FileChannel in, FileChannel out) throws IOException {
+        long size = in.size();
+        long position = 0;
+        while (position < size) {
+            long n = in.transferTo(position, size - position, out);
+            if (n <= 0) {
+                break;
+            }
+            position += n;
+        }
+    }
+
+    /** Returns how many deltas must be applied to rebuild the object with the given hash,
+     *  or -1 if it is a list of chunks or a raw object, which are never used as a base. */
+    private int depth(String hash) throws IOException {
+        if (locateRaw(hash).exists()) {
+            return -1;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new BufferedInputStream(openRaw(hash))))) {
+            int type = in.read();
+            if (type == CHUNKS) {
+                return -1;
+            } else if (type != DELTA) {
+                return 0;
+            }
+            in.readFully(new byte[HASH_SIZE]);
+            return in.readInt();
+        }
+    }
+
+    /** Returns the full content of the object with the given hash, rebuilding it from its
+     *  delta chain if needed. Rebuilt contents are kept in the cache of recent bases.
+     *  @param hash String hash of the stored object */
+    public byte[] read(String hash) throws IOException {
+        byte[] content = cached(hash);
+        if (content != null) {
+            return content;
+        }
+        File raw = locateRaw(hash);
+        if (raw.exists()) {
+            content = Files.readAllBytes(raw.toPath());
+            if (!toHex(newDigest().digest(content)).equals(hash)) {
+                throw corrupt(hash);
+            }
+            cache(hash, content);
+            return content;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new InflaterInputStream(new BufferedInputStream(openRaw(hash))))) {
+            int type = in.read();
+            if (type == BLOB || type == TREE) {
+                content = in.readAllBytes();
+            } else if (type == DELTA) {
+                byte[] base = new byte[HASH_SIZE];
+                in.readFully(base);
+                in.readInt();
+                content = Delta.apply(read(toHex(base)), in.readAllBytes());
+            } else if (type == CHUNKS) {
+                try (InputStream chunks = new ChunkStream(in.readAllBytes())) {
+                    content = chunks.readAllBytes();
+                }
+            } else {
+                throw new IOException("Unknown type " + type + " for object " + hash);
+            }
+        }
+        cache(hash, content);
+        return content;
+    }
+
+    private synchronized byte[] cached(String hash) {
+        return cache.get(hash);
+    }
+
+    private synchronized void cache(String hash, byte[] content) {
+        if (content.length > CACHE_LIMIT / 4 || cache.containsKey(hash)) {
+            return;
+        }
+        cache.put(hash, content);
+        cacheSize += content.length;
+        Iterator<byte[]> it = cache.values().iterator();
+        while (cacheSize > CACHE_LIMIT && it.hasNext()) {
+            cacheSize -= it.next().length;
+            it.remove();
+        }
+    }
+
+    /** Returns true if an object with the given hash has been stored, loose or packed.
+     *  @param hash */
+    public boolean contains(String hash) {
+        if (hash == null) {
+            return false;
+        }
+        if (locate(hash).exists() || locateRaw(hash).exists()) {
+            return true;
+        }
+        for (PackFile pack: packs()) {
+            if (pack.contains(hash)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the location of the loose object with the given hash, whether or not it
+     *  exists.
+     *  @param hash */
+    public File locate(String hash) {
+        return new File(new File(objectsDir, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    /** Returns the location of the raw object with the given hash, whether or not it
+     *  exists. */
+    private File locateRaw(String hash) {
+        return new File(new File(rawDir, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    /** Returns true if the given file holds exactly the content addressed by hash.
+     *  @param file File in the working directory
+     *  @param hash String hash of a stored object */
+    public boolean sameContent(File file, String hash) {
+        if (hash == null || !file.exists()) {
+            return false;
+        }
+        try {
+            return hash(file).equals(hash);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return false;
+    }
+
+    /** Returns a stream over the decompressed content of the object with the given hash,
+     *  reading it from its loose file or from the pack that holds it. Whole blobs and the
+     *  chunks of chunked files are streamed, while deltas are rebuilt in memory.
+     *  @param hash String hash of the stored object */
+    public InputStream open(String hash) throws IOException {
+        byte[] content = cached(hash);
+        if (content != null) {
+            return new ByteArrayInputStream(content);
+        }
+        File raw = verifiedRaw(hash);
+        if (raw != null) {
+            return new FileInputStream(raw);
+        }
+        InputStream in = new InflaterInputStream(new BufferedInputStream(openRaw(hash)));
+        int type = in.read();
+        if (type == DELTA) {
+            in.close();
+            return new ByteArrayInputStream(read(hash));
+        } else if (type == CHUNKS) {
+            byte[] list = in.readAllBytes();
+            in.close();
+            return new ChunkStream(list);
+        } else if (type != BLOB) {
+            in.close();
+            throw new IOException("Unknown type " + type + " for object " + hash);
+        }
+        return in;
+    }
+
+    /** Returns the raw object with the given hash, or null if there is none. A raw object
+     *  whose size or modification time differ from its stamp is hashed again first, and
+     *  stamped again if its content still has that hash. */
+    private File verifiedRaw(String hash) throws IOException {
+        File raw = locateRaw(hash);
+        if (!raw.exists()) {
+            return null;
+        } else if (!stamped(hash, raw)) {
+            if (!hash(raw).equals(hash)) {
+                throw corrupt(hash);
+            }
+            stamp(hash, raw);
+        }
+        return raw;
+    }
+
+    /** Returns true if the given raw object has the size and modification time recorded
+     *  for the given hash. */
+    private synchronized boolean stamped(String hash, File raw) throws IOException {
+        if (stamps == null) {
+            stamps = new HashMap<String, String>();
+            if (stampsFile.exists()) {
+                for (String line: Files.readAllLines(stampsFile.toPath(),
+                                                     StandardCharsets.US_ASCII)) {
+                    int space = line.indexOf(' ');
+                    if (space > 0) {
+                        stamps.put(line.substring(0, space), line.substring(space + 1));
+                    }
+                }
+            }
+        }
+        return (raw.length() + " " + raw.lastModified()).equals(stamps.get(hash));
+    }
+
+    /** Appends the current size and modification time of the given raw object to the
+     *  stamps file, where a later line for the same hash wins. */
+    private synchronized void stamp(String hash, File raw) throws IOException {
+        String value = raw.length() + " " + raw.lastModified();
+        if (stamps != null) {
+            stamps.put(hash, value);
+        }
+        try (OutputStream out = new FileOutputStream(stampsFile, true)) {
+            out.write((hash + " " + value + "\n").getBytes(StandardCharsets.US_ASCII));
+        }
+    }
+
+    private static IOException corrupt(String hash) {
+        return new IOException("Object " + hash + " is corrupt: its content does not match its hash.");
+    }
+
+    /** Returns a stream over the compressed bytes of the object with the given hash. */
+    private InputStream openRaw(String hash) throws IOException {
+        File loose = locate(hash);
+        if (loose.exists()) {
+            return new FileInputStream(loose);
+        }
+        for (PackFile pack: packs()) {
+            InputStream in = pack.openRaw(hash);
+            if (in != null) {
+                return in;
+            }
+        }
+        throw new IOException("Object " + hash + " does not exist.");
+    }
+
+    /** Writes the object with the given hash to the file at dest, replacing it if present.
+     *  @param hash String hash of the stored object
+     *  @param dest String destination path */
+    public void restore(String hash, String dest) throws IOException {
+        Path destination = Paths.get(dest);
+        if (destination.getParent() != null) {
+            Files.createDirectories(destination.getParent());
+        }
+        write(hash, destination);
+    }
+
+    /** Writes the object with the given hash to the file at dest, replacing it if present,
+     *  without creating its parent folder. A raw object is cloned or copied as copy does,
+     *  and any other object is streamed.
+     *  @param hash String hash of the stored object
+     *  @param dest Path destination file */
+    public void write(String hash, Path dest) throws IOException {
+        File raw = verifiedRaw(hash);
+        if (raw == null) {
+            try (InputStream in = open(hash)) {
+                Files.copy(in, dest, REPLACE_EXISTING);
+            }
+            return;
+        }
+        copy(raw.toPath(), dest);
+    }
+
+    /** Stores the noted new versions of files as deltas, moves every loose object into a
+     *  new pack file and returns the number of objects packed. */
+    public int pack() throws IOException {
+        encodeDeltas();
+        List<String> loose = new ArrayList<String>();
+        File[] dirs = objectsDir.listFiles();
+        if (dirs != null) {
+            for (File dir: dirs) {
+                String[] names = dir.list();
+                if (dir.getName().length() != 2 || names == null) {
+                    continue;
+                }
+                for (String name: names) {
+                    loose.add(dir.getName() + name);
+                }
+            }
+        }
+        if (loose.isEmpty()) {
+            basesFile.delete();
+            return 0;
+        }
+        packs().add(new PackFile(PackFile.write(packDir, loose, this)));
+        for (String hash: loose) {
+            File object = locate(hash);
+            object.delete();
+            object.getParentFile().delete();
+        }
+        basesFile.delete();
+        return loose.size();
+    }
+
+    /** Returns the packs in the pack folder, opening their indexes on first use. */
+    private synchronized List<PackFile> packs() {
+        if (packs == null) {
+            packs = new ArrayList<PackFile>();
+            File[] files = packDir.listFiles();
+            if (files != null) {
+                for (File file: files) {
+                    if (!file.getName().startsWith("pack-") || !file.getName().endsWith(".idx")) {
+                        continue;
+                    }
+                    try {
+                        packs.add(new PackFile(file));
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }
+        return packs;
+    }
+
+    /** Stream over the content of a chunked file, which opens each chunk in turn. */
+    private class ChunkStream extends InputStream {
+        private DataInputStream list;
+        private InputStream current;
+
+        ChunkStream(byte[] l) {
+            list = new DataInputStream(new ByteArrayInputStream(l));
+        }
+
+        /** Opens the next chunk, and returns false if there is none. */
+        private boolean next() throws IOException {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+            if (list.available() == 0) {
+                return false;
+            }
+            byte[] hash = new byte[HASH_SIZE];
+            list.readFully(hash);
+            list.readInt();
+            current = open(toHex(hash));
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (true) {
+                if (current != null) {
+                    int n = current.read(b, off, len);
+                    if (n >= 0) {
+                        return n;
+                    }
+                }
+                if (!next()) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (current != null) {
+                current.close();
+            }
+        }
+    }
+
+    /** Returns the hex SHA-256 hash of the UTF-8 bytes of the given string. */
+    static String hashOf(String s) {
+        return toHex(newDigest().digest(s.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder res = new StringBuilder(bytes.length * 2);
+        for (byte b: bytes) {
+            res.append(Character.forDigit((b >> 4) & 0xf, 16));
+            res.append(Character.forDigit(b & 0xf, 16));
+        }
+        return res.toString();
+    }
+
+    static byte[] fromHex(String hex) {
+        byte[] res = new byte[hex.length() / 2];
+        for (int i = 0; i < res.length; i++) {
+            res[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.DataOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** A pack of many compressed objects stored back to back in a single .pack file, together
+ *  with a sorted .idx file that maps each object hash to its offset and length in the pack.
+ *  The index is memory-mapped and searched with a binary search, so reading one object only
+ *  touches its own bytes in the pack.
+ *  Pack layout: "KPAK", version, object count, then the compressed objects.
+ *  Index layout: "KIDX", version, object count, then one record per object, sorted by hash,
+ *  holding the 32 byte hash, the 8 byte offset and the 8 byte length of the object.
+ */
+public class PackFile {
+    private static final int PACK_MAGIC = 0x4b50414b;
+    private static final int INDEX_MAGIC = 0x4b494458;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final int HASH_SIZE = 32;
+    private static final int RECORD_SIZE = HASH_SIZE + 16;
+
+    private File packFile;
+    private MappedByteBuffer index;
+    private int count;
+    private FileChannel pack;
+
+    /** Opens the pack whose index is stored at the given idx file.
+     *  @param idxFile File of the pack index */
+    public PackFile(File idxFile) throws IOException {
+        String name = idxFile.getName();
+        packFile = new File(idxFile.getParentFile(), name.substring(0, name.length() - 4) + ".pack");
+        try (RandomAccessFile raf = new RandomAccessFile(idxFile, "r")) {
+            index = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != VERSION) {
+            throw new IOException("Corrupt pack index " + idxFile);
+        }
+        count = index.getInt(8);
+    }
+
+    /** Returns the number of objects in this pack. */
+    public int size() {
+        return count;
+    }
+
+    /** Returns true if this pack holds the object with the given hash.
+     *  @param hash String hex hash */
+    public boolean contains(String hash) {
+        return find(ObjectStore.fromHex(hash)) >= 0;
+    }
+
+    /** Returns a stream over the compressed bytes of the object with the given hash, or
+     *  null if it is not in this pack.
+     *  @param hash String hex hash */
+    public InputStream openRaw(String hash) throws IOException {
+        int i = find(ObjectStore.fromHex(hash));
+        if (i < 0) {
+            return null;
+        }
+        int record = HEADER_SIZE + i * RECORD_SIZE;
+        long offset = index.getLong(record + HASH_SIZE);
+        long length = index.getLong(record + HASH_SIZE + 8);
+        return new RegionInputStream(channel(), offset, length);
+    }
+
+    /** Binary searches the index for the given hash and returns its record number, or -1. */
+    private int find(byte[] hash) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(HEADER_SIZE + mid * RECORD_SIZE, hash);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private int compare(int position, byte[] hash) {
+        for (int i = 0; i < HASH_SIZE; i++) {
+            int a = index.get(position + i) & 0xff;
+            int b = hash[i] & 0xff;
+            if (a != b) {
+                return a - b;
+            }
+        }
+        return 0;
+    }
+
+    private synchronized FileChannel channel() throws IOException {
+        if (pack == null) {
+            pack = new RandomAccessFile(packFile, "r").getChannel();
+        }
+        return pack;
+    }
+
+    /** Writes the given loose object files into a new pack and index in packDir, named
+     *  after the hash of their contents, and returns the index file. The loose files are
+     *  copied as they are, since they are already compressed.
+     *  @param packDir File directory to write the pack into
+     *  @param hashes List of hex hashes of the objects
+     *  @param store ObjectStore the loose objects belong to */
+    public static File write(File packDir, List<String> hashes, ObjectStore store)
+            throws IOException {
+        List<String> sorted = new ArrayList<String>(hashes);
+        Collections.sort(sorted);
+        packDir.mkdirs();
+        File tempPack = File.createTempFile("tmp", ".pack", packDir);
+        File tempIndex = File.createTempFile("tmp", ".idx", packDir);
+        long[] offsets = new long[sorted.size()];
+        long[] lengths = new long[sorted.size()];
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempPack)))) {
+            out.writeInt(PACK_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            long offset = HEADER_SIZE;
+            for (int i = 0; i < sorted.size(); i++) {
+                long length = Files.copy(store.locate(sorted.get(i)).toPath(), out);
+                offsets[i] = offset;
+                lengths[i] = length;
+                offset += length;
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tempIndex)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(sorted.size());
+            for (int i = 0; i < sorted.size(); i++) {
+                out.write(ObjectStore.fromHex(sorted.get(i)));
+                out.writeLong(offsets[i]);
+                out.writeLong(lengths[i]);
+            }
+        }
+        String name = "pack-" + ObjectStore.hashOf(String.join("\n", sorted));
+        File packFile = new File(packDir, name + ".pack");
+        File idxFile = new File(packDir, name + ".idx");
+        Files.move(tempPack.toPath(), packFile.toPath());
+        Files.move(tempIndex.toPath(), idxFile.toPath());
+        return idxFile;
+    }
+
+    /** Reads a fixed region of a file channel with positional reads, so that many objects
+     *  of the same pack can be read concurrently. */
+    private static class RegionInputStream extends InputStream {
+        private FileChannel channel;
+        private long position;
+        private long remaining;
+
+        RegionInputStream(FileChannel channel, long position, long length) {
+            this.channel = channel;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(b, off, (int) Math.min(len, remaining));
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                return -1;
+            }
+            position += n;
+            remaining -= n;
+            return n;
+        }
+    }
+}
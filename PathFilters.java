@@ -0,0 +1,152 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/** Bloom filters of the paths that each commit changed compared to its first parent, so
+ *  that a walk over the history of one path can skip the commits that did not touch it
+ *  without reading their trees. A filter holds every changed file and every folder above
+ *  it, so folders can be looked up too. It can give a false positive, about 1 in 120
+ *  lookups, but never a false negative, so a commit it matches still has to be checked.
+ *  A filter has 10 bits per path, at least 64, and each path sets 7 of them, chosen by
+ *  double hashing a 64 bit FNV-1a hash of the path. Commits that changed more than
+ *  MAX_PATHS paths get no bits at all and always match, as do commits without a filter.
+ *  The filters are saved in commits/paths, one after the other as a count of longs, -1
+ *  for a commit that always matches, followed by the longs. commits/paths.idx holds one
+ *  more than the position of the filter of each id, 0 for a commit without one. Both are
+ *  only ever appended to or overwritten in place, and are mapped into memory on first use.
+ */
+public class PathFilters {
+    private static final int MAX_PATHS = 512;
+    private static final int BITS_PER_PATH = 10;
+    private static final int HASHES = 7;
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private File dataFile;
+    private File indexFile;
+    private ByteBuffer data;
+    private LongBuffer index;
+
+    /** Creates the filters stored in the commits folder of the given metadata directory.
+     *  @param root String path of the .kabgit folder */
+    public PathFilters(String root) {
+        File dir = new File(root, "commits");
+        dataFile = new File(dir, "paths");
+        indexFile = new File(dir, "paths.idx");
+    }
+
+    /** Saves the filter of the commit with the given id, replacing any earlier one.
+     *  @param id int global commit id
+     *  @param paths Collection of the paths of the files the commit changed */
+    public synchronized void add(int id, Collection<String> paths) throws IOException {
+        LinkedHashSet<String> keys = new LinkedHashSet<String>();
+        for (String path: paths) {
+            keys.add(path);
+            for (int slash = path.lastIndexOf('/'); slash > 0;
+                 slash = path.lastIndexOf('/', slash - 1)) {
+                if (!keys.add(path.substring(0, slash))) {
+                    break;
+                }
+            }
+        }
+        long[] bits = null;
+        if (keys.size() <= MAX_PATHS) {
+            bits = new long[Math.max(1, (keys.size() * BITS_PER_PATH + 63) / 64)];
+            for (String key: keys) {
+                long hash = hash(key);
+                for (int i = 0; i < HASHES; i++) {
+                    int bit = bit(hash, i, bits.length);
+                    bits[bit >>> 6] |= 1L << bit;
+                }
+            }
+        }
+        dataFile.getParentFile().mkdirs();
+        long position;
+        try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+            position = raf.length();
+            raf.seek(position);
+            ByteBuffer record = ByteBuffer.allocate(4 + 8 * (bits == null ? 0 : bits.length));
+            record.putInt(bits == null ? -1 : bits.length);
+            if (bits != null) {
+                record.asLongBuffer().put(bits);
+            }
+            raf.write(record.array());
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "rw")) {
+            long slot = (long) id * 8;
+            if (raf.length() < slot) {
+                raf.setLength(slot);
+            }
+            raf.seek(slot);
+            raf.writeLong(position + 1);
+        }
+        data = null;
+        index = null;
+    }
+
+    /** Returns the hash that paths are looked up by, computed once per walk.
+     *  @param path String path of a file or folder, with '/' between folders */
+    public static long hash(String path) {
+        if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        long hash = FNV_OFFSET;
+        for (byte b: path.getBytes(StandardCharsets.UTF_8)) {
+            hash = (hash ^ (b & 0xff)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /** Returns false if the commit with the given id certainly did not change the path with
+     *  the given hash, and true if it may have.
+     *  @param id int global commit id
+     *  @param hash long hash of the path, from hash */
+    public synchronized boolean mayContain(int id, long hash) {
+        if (!load() || id >= index.limit() || index.get(id) == 0) {
+            return true;
+        }
+        int position = (int) (index.get(id) - 1);
+        int length = data.getInt(position);
+        if (length < 0) {
+            return true;
+        }
+        for (int i = 0; i < HASHES; i++) {
+            int bit = bit(hash, i, length);
+            if ((data.getLong(position + 4 + 8 * (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the i-th bit that the given hash sets in a filter of the given number of longs. */
+    private static int bit(long hash, int i, int length) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32) | 1;
+        return Integer.remainderUnsigned(h1 + i * h2, length * 64);
+    }
+
+    /** Maps the filters into memory, if that has not happened yet, and returns false if
+     *  there are none. */
+    private boolean load() {
+        if (index != null) {
+            return true;
+        } else if (!indexFile.exists() || !dataFile.exists()) {
+            return false;
+        }
+        try (FileChannel idx = FileChannel.open(indexFile.toPath());
+             FileChannel dat = FileChannel.open(dataFile.toPath())) {
+            index = idx.map(FileChannel.MapMode.READ_ONLY, 0, idx.size() / 8 * 8).asLongBuffer();
+            data = dat.map(FileChannel.MapMode.READ_ONLY, 0, dat.size());
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
+}
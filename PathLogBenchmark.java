@@ -0,0 +1,91 @@
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+/** Compares finding the commits that changed one path by reading every commit, the way a
+ *  log of a path would have to without filters, with a pass over the changed-path Bloom
+ *  filters. It builds a synthetic history of 20,000 commits over 2,000 files in 280
+ *  folders, each commit changing 3 random files, and prints how long each took, how many
+ *  commits changed the path and how many the filters let through. Run it with
+ *      java PathLogBenchmark [number of commits]
+ */
+public class PathLogBenchmark {
+    private static final int COMMITS = 20000;
+    private static final int FILES = 2000;
+    private static final int CHANGES = 3;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : COMMITS;
+        File root = Bench.tempDir("kabgit-pathlog");
+        try {
+            String metadata = new File(root, ".kabgit").getPath();
+            new File(metadata, "objects").mkdirs();
+            ObjectStore objects = new ObjectStore(metadata);
+            TreeStore trees = new TreeStore(objects);
+            CommitStore store = new CommitStore(metadata, trees);
+            CommitGraph graph = new CommitGraph(metadata);
+            PathFilters filters = new PathFilters(metadata);
+            Random random = new Random(1);
+            String[] blobs = new String[64];
+            for (int i = 0; i < blobs.length; i++) {
+                blobs[i] = objects.put(ObjectStore.BLOB, ("version " + i).getBytes());
+            }
+            Commit initial = new Commit("initial commit", 0, trees.empty(), trees);
+            initial.setDateTime("2026-10-16 12:00:00");
+            CommitTree tree = new CommitTree(initial, store, graph, filters,
+                                             new MessageIndex(metadata));
+            long start = System.nanoTime();
+            for (int id = 1; id <= count; id++) {
+                Map<String, String> changes = new HashMap<String, String>();
+                for (int i = 0; i < CHANGES; i++) {
+                    changes.put(path(random.nextInt(FILES)), blobs[random.nextInt(blobs.length)]);
+                }
+                Commit commit = new Commit("commit " + id, id, tree.currentCommit(), changes);
+                commit.setDateTime("2026-10-16 12:00:00");
+                tree.add(commit);
+            }
+            System.out.println("Built " + count + " commits in " + Bench.millis(start) + " ms.");
+
+            String path = path(random.nextInt(FILES));
+            int head = tree.currentCommit().getID();
+            start = System.nanoTime();
+            int changed = 0;
+            for (int id = head; id >= 0; id = graph.parent(id)) {
+                Commit commit = store.read(id);
+                int parent = graph.parent(id);
+                String from = parent < 0 ? trees.empty() : store.read(parent).tree();
+                if (!Objects.equals(trees.lookup(from, path), trees.lookup(commit.tree(), path))) {
+                    changed++;
+                }
+            }
+            long naive = Bench.millis(start);
+
+            start = System.nanoTime();
+            int passed = 0;
+            long hash = PathFilters.hash(path);
+            for (int id = head; id >= 0; id = graph.parent(id)) {
+                if (filters.mayContain(id, hash)) {
+                    passed++;
+                }
+            }
+            long filtered = Bench.millis(start);
+            System.out.println("Path " + path + " was changed by " + changed + " commits.");
+            System.out.println("Reading and comparing every commit: " + naive + " ms.");
+            System.out.println("Filter pass over the whole history: " + filtered + " ms, "
+                               + passed + " commits passed.");
+            if (passed < changed) {
+                throw new IllegalStateException("The filters ruled out a commit that changed "
+                                                + path + ".");
+            }
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** Returns the path of the given file, spread over 40 folders with 7 subfolders each. */
+    private static String path(int file) {
+        return "d" + (file % 40) + "/s" + (file % 7) + "/f" + file;
+    }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** A path given to add, which names a file, a folder, or every path that matches a glob
+ *  such as "src/*.java" or "**&#47;*.txt". A folder stands for every file under it, and so
+ *  does a folder that matches a glob. Globs follow java.nio PathMatcher syntax and are
+ *  matched against the whole path from the root of the working directory, so * does not
+ *  match a slash and ** does. Quote them so that the shell does not expand them first.
+ */
+public class PathSpec {
+    private String path;
+    private PathMatcher glob;
+
+    /** Creates the spec for the given argument. A path that is not a glob is normalized, so
+     *  "./a.txt" and "dir/../a.txt" both name a.txt.
+     *  @param arg String path or glob relative to the working directory */
+    public PathSpec(String arg) {
+        path = arg.replace('\\', '/');
+        while (path.startsWith("./")) {
+            path = path.substring(2);
+        }
+        while (path.length() > 1 && path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (isGlob(path)) {
+            glob = FileSystems.getDefault().getPathMatcher("glob:" + path);
+        } else {
+            path = Paths.get(path).normalize().toString().replace('\\', '/');
+        }
+        if (path.equals(".")) {
+            path = "";
+        }
+    }
+
+    private static boolean isGlob(String s) {
+        for (char c: s.toCharArray()) {
+            if (c == '*' || c == '?' || c == '[' || c == '{') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns true if the spec is a glob rather than the path of one file or folder. */
+    public boolean isGlob() {
+        return glob != null;
+    }
+
+    /** Returns the path of the file or folder, with "" for the root. */
+    public String path() {
+        return path;
+    }
+
+    /** Returns true if the file at the given path is in the spec.
+     *  @param file String path of a file relative to the working directory */
+    public boolean matches(String file) {
+        if (glob == null) {
+            return path.isEmpty() || file.equals(path) || file.startsWith(path + "/");
+        }
+        if (glob.matches(Paths.get(file))) {
+            return true;
+        }
+        for (int i = file.indexOf('/'); i >= 0; i = file.indexOf('/', i + 1)) {
+            if (glob.matches(Paths.get(file.substring(0, i)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Returns the files of the working directory in the spec, leaving out untracked files
+     *  that the ignore file ignores. The walk starts from the longest folder before the
+     *  first glob character, and does not enter ignored folders that hold no file of the
+     *  given commit.
+     *  @param ignore IgnoreFile of the working directory
+     *  @param head Commit whose files are tracked */
+    public Set<String> files(IgnoreFile ignore, Commit head) throws IOException {
+        TreeSet<String> files = new TreeSet<String>();
+        String start = path;
+        if (glob != null) {
+            int first = 0;
+            while (!isGlob(path.substring(0, first + 1))) {
+                first++;
+            }
+            start = path.substring(0, Math.max(0, path.lastIndexOf('/', first)));
+        }
+        Path root = Paths.get(start.isEmpty() ? "." : start);
+        if (!Files.isDirectory(root)) {
+            return files;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+                    throws IOException {
+                String name = relative(dir);
+                if (name.equals(".kabgit")
+                        || (!name.isEmpty() && ignore.matches(name, true)
+                            && head.trees().lookup(head.tree(), name + "/") == null)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                String name = relative(file);
+                if (attrs.isRegularFile() && matches(name)
+                        && (head.retrieveFile(name) != null || !ignore.ignores(name))) {
+                    files.add(name);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return files;
+    }
+
+    private static String relative(Path path) {
+        String name = path.normalize().toString().replace('\\', '/');
+        return name.equals(".") ? "" : name;
+    }
+}
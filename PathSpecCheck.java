@@ -0,0 +1,46 @@
+import java.io.File;
+import java.nio.file.Files;
+
+/** Checks that the paths given to add are normalized, so that "./a.txt", "dir/../a.txt"
+ *  and "a.txt" all name the same file and a spelling of the path never reaches the commit
+ *  tree. It fails on the first argument that PathSpec or a file lookup gets wrong. Run it
+ *  with
+ *      java PathSpecCheck
+ */
+public class PathSpecCheck {
+    private static final String[][] CASES = {
+        {"a.txt", "a.txt"}, {"./a.txt", "a.txt"}, {"././a.txt", "a.txt"},
+        {"dir/../a.txt", "a.txt"}, {"./dir/../a.txt", "a.txt"},
+        {"dir/./b.txt", "dir/b.txt"}, {"dir/sub/../b.txt", "dir/b.txt"}, {"dir/", "dir"},
+        {"./dir/..", ""}, {".", ""}, {"./", ""}
+    };
+
+    public static void main(String[] args) throws Exception {
+        File root = Bench.tempDir("kabgit-pathspec");
+        try {
+            new File(root, "dir/sub").mkdirs();
+            Files.write(new File(root, "a.txt").toPath(), new byte[] {'a'});
+            Files.write(new File(root, "dir/b.txt").toPath(), new byte[] {'b'});
+            for (String[] c: CASES) {
+                PathSpec spec = new PathSpec(c[0]);
+                if (spec.isGlob() || !spec.path().equals(c[1])) {
+                    throw new IllegalStateException("\"" + c[0] + "\" gave \"" + spec.path()
+                                                    + "\" instead of \"" + c[1] + "\".");
+                }
+                if (!c[1].isEmpty() && !spec.matches(c[1])) {
+                    throw new IllegalStateException("\"" + c[0] + "\" does not match "
+                                                    + c[1] + ".");
+                }
+                if (!new File(root, spec.path()).exists()) {
+                    throw new IllegalStateException("\"" + c[0] + "\" names no file.");
+                }
+            }
+            if (!new PathSpec("./src/*.java").isGlob()) {
+                throw new IllegalStateException("\"./src/*.java\" is not a glob.");
+            }
+            System.out.println("All " + CASES.length + " paths are normalized.");
+        } finally {
+            Bench.delete(root);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Checks that rebase replays only the commits of the current branch that the other
+ *  branch does not have. It runs kabgit in a repository in a temporary folder, from the
+ *  class path of this JVM, for each of the cases below, and fails on the first wrong
+ *  history or file. Run it with
+ *      java RebaseCheck
+ */
+public class RebaseCheck {
+    public static void main(String[] args) throws Exception {
+        forkedBranch();
+        mergedBranch();
+        System.out.println("Rebase replayed the right commits.");
+    }
+
+    /** master and b each add a commit after the fork. Rebasing master onto b replays c1. */
+    private static void forkedBranch() throws Exception {
+        File root = Bench.tempDir("kabgit-rebase");
+        try {
+            write(root, "a.txt", "a\n");
+            run(root, "init");
+            run(root, "add", "a.txt");
+            run(root, "commit", "first");
+            run(root, "branch", "b");
+            write(root, "c.txt", "c1\n");
+            run(root, "add", "c.txt");
+            run(root, "commit", "c1");
+            confirm(root, "checkout", "b");
+            write(root, "b.txt", "b1\n");
+            run(root, "add", "b.txt");
+            run(root, "commit", "b1");
+            confirm(root, "checkout", "master");
+            confirm(root, "rebase", "b");
+            expect(root, "forked branch", "c1", "b1", "first", "initial commit");
+            expectFile(root, "b.txt", "b1\n");
+            expectFile(root, "c.txt", "c1\n");
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** master merges b, and b then gets one more commit, which also edits a file that b1
+     *  changed. The split point b1 is reached from master only through the second parent
+     *  of the merge. Rebasing master onto b replays c1 alone: neither the commits before
+     *  the fork, nor the merge, whose changes would undo b2. */
+    private static void mergedBranch() throws Exception {
+        File root = Bench.tempDir("kabgit-rebase");
+        try {
+            write(root, "a.txt", "a\n");
+            run(root, "init");
+            run(root, "add", "a.txt");
+            run(root, "commit", "first");
+            run(root, "branch", "b");
+            write(root, "c.txt", "c1\n");
+            run(root, "add", "c.txt");
+            run(root, "commit", "c1");
+            confirm(root, "checkout", "b");
+            write(root, "b.txt", "b1\n");
+            run(root, "add", "b.txt");
+            run(root, "commit", "b1");
+            confirm(root, "checkout", "master");
+            confirm(root, "merge", "b");
+            confirm(root, "checkout", "b");
+            write(root, "b.txt", "b2\n");
+            run(root, "add", "b.txt");
+            run(root, "commit", "b2");
+            confirm(root, "checkout", "master");
+            confirm(root, "rebase", "b");
+            expect(root, "merged branch", "c1", "b2", "b1", "first", "initial commit");
+            expectFile(root, "b.txt", "b2\n");
+            expectFile(root, "c.txt", "c1\n");
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** Runs a kabgit command that asks before it changes the working directory. */
+    private static void confirm(File root, String... args) throws IOException {
+        runWith(root, "yes\n", args);
+    }
+
+    private static String run(File root, String... args) throws IOException {
+        return runWith(root, "", args);
+    }
+
+    /** Runs kabgit with the given arguments in the given folder, with the given standard
+     *  input, and returns its output. */
+    private static String runWith(File root, String input, String... args)
+            throws IOException {
+        List<String> cmd = new ArrayList<String>();
+        cmd.add("KabGit");
+        cmd.addAll(List.of(args));
+        Process process = Bench.java(root, cmd.toArray(new String[0])).start();
+        process.getOutputStream().write(input.getBytes(StandardCharsets.UTF_8));
+        process.getOutputStream().close();
+        String out = new String(process.getInputStream().readAllBytes(),
+                                StandardCharsets.UTF_8);
+        try {
+            process.waitFor();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+        return out;
+    }
+
+    /** Throws an IllegalStateException unless log on the current branch lists exactly the
+     *  given messages, newest first. */
+    private static void expect(File root, String name, String... messages)
+            throws IOException {
+        List<String> found = new ArrayList<String>();
+        String[] lines = run(root, "log").split("\n");
+        for (int i = 0; i + 3 < lines.length; i++) {
+            if (lines[i].equals("====") && lines[i + 1].startsWith("Commit ")) {
+                found.add(lines[i + 3]);
+            }
+        }
+        if (!found.equals(List.of(messages))) {
+            throw new IllegalStateException(name + ": log shows " + found + " instead of "
+                                            + List.of(messages) + ".");
+        }
+    }
+
+    private static void expectFile(File root, String name, String content)
+            throws IOException {
+        String found = new String(Files.readAllBytes(new File(root, name).toPath()),
+                                  StandardCharsets.UTF_8);
+        if (!found.equals(content)) {
+            throw new IllegalStateException(name + " holds \"" + found + "\" instead of \""
+                                            + content + "\".");
+        }
+    }
+
+    private static void write(File root, String name, String content) throws IOException {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        Files.write(new File(root, name).toPath(), bytes);
+    }
+}
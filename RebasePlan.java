@@ -0,0 +1,153 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/** The steps of an interactive rebase, read from a todo list with one line per commit:
+ *      pick &lt;id&gt;             replay the commit as it is
+ *      reword &lt;id&gt; &lt;message&gt;  replay the commit with a new message
+ *      squash &lt;id&gt; [message]  fold the commit into the one replayed before it
+ *      skip &lt;id&gt;             leave the commit and its changes out
+ *  The first letter of a command may be used instead of it, and drop is the same as skip.
+ *  Anything after the id of a pick or skip line is ignored, and so is anything after the
+ *  id of any line that starts with #. describe prints each message that way, as a comment
+ *  after the id, so its lines can be edited in place, and turning a pick into a squash
+ *  keeps both messages. Blank lines and lines starting with # are ignored.
+ *  A squashed commit takes the message of the commit it is folded into, followed by its
+ *  own, unless a message is given. The list is checked as a whole when it is parsed: every
+ *  commit to replay must appear exactly once, in any order, and a squash needs a replayed
+ *  commit before it. So an invalid list is rejected before any commit is made.
+ */
+public class RebasePlan {
+    static final int PICK = 0;
+    static final int REWORD = 1;
+    static final int SQUASH = 2;
+    static final int SKIP = 3;
+    private ArrayList<Step> steps = new ArrayList<Step>();
+
+    /** Parses the given todo list for the commits with the given ids, and throws an
+     *  IllegalArgumentException that names the first problem if it is not valid.
+     *  @param lines List of the lines of the todo list
+     *  @param ids List of the ids of the commits to replay */
+    public static RebasePlan parse(List<String> lines, List<Integer> ids) {
+        RebasePlan plan = new RebasePlan();
+        HashSet<Integer> seen = new HashSet<Integer>();
+        boolean replayed = false;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] words = line.split("\\s+", 3);
+            String where = "Line " + (i + 1) + ": ";
+            if (words.length < 2) {
+                throw new IllegalArgumentException(where + "expected a command and a commit id.");
+            }
+            Step step = new Step();
+            step.command = command(words[0]);
+            if (step.command < 0) {
+                throw new IllegalArgumentException(where + "unknown command " + words[0] + ".");
+            }
+            try {
+                step.id = Integer.parseInt(words[1]);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException(where + words[1] + " is not a commit id.");
+            }
+            if (!ids.contains(step.id)) {
+                throw new IllegalArgumentException(where + "commit " + step.id
+                                                   + " is not one of the commits to replay.");
+            } else if (!seen.add(step.id)) {
+                throw new IllegalArgumentException(where + "commit " + step.id
+                                                   + " appears more than once.");
+            }
+            if (words.length > 2 && !words[2].startsWith("#")
+                    && (step.command == REWORD || step.command == SQUASH)) {
+                step.message = words[2];
+            }
+            if (step.command == REWORD && step.message == null) {
+                throw new IllegalArgumentException(where + "reword needs a new message.");
+            } else if (step.command == SQUASH && !replayed) {
+                throw new IllegalArgumentException(where + "there is no earlier commit to squash "
+                                                   + step.id + " into.");
+            }
+            replayed = replayed || step.command != SKIP;
+            plan.steps.add(step);
+        }
+        for (int id: ids) {
+            if (!seen.contains(id)) {
+                throw new IllegalArgumentException("Commit " + id + " is missing from the plan.");
+            }
+        }
+        return plan;
+    }
+
+    /** Returns a plan that picks each of the commits with the given ids, in order.
+     *  @param ids List of the ids of the commits to replay */
+    public static RebasePlan pickAll(List<Integer> ids) {
+        RebasePlan plan = new RebasePlan();
+        for (int id: ids) {
+            Step step = new Step();
+            step.command = PICK;
+            step.id = id;
+            plan.steps.add(step);
+        }
+        return plan;
+    }
+
+    /** Returns the todo list that picks each of the commits with the given ids, with their
+     *  messages as comments, and a short description of the commands.
+     *  @param ids List of the ids of the commits to replay
+     *  @param messages List of their messages */
+    public static String describe(List<Integer> ids, List<String> messages) {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            res.append("pick ").append(ids.get(i)).append(" # ")
+               .append(messages.get(i).replace('\n', ' ')).append('\n');
+        }
+        res.append("\n# Commands, one line per commit, oldest first:\n");
+        res.append("# p, pick <id>             replay the commit\n");
+        res.append("# r, reword <id> <message> replay the commit with a new message\n");
+        res.append("# s, squash <id> [message] fold the commit into the one before it\n");
+        res.append("# d, skip <id>             leave the commit out\n");
+        res.append("# Text after the id that starts with # is a comment.\n");
+        return res.toString();
+    }
+
+    /** Returns the steps of this plan, in the order they are applied. */
+    public List<Step> steps() {
+        return steps;
+    }
+
+    private static int command(String word) {
+        switch (word) {
+            case "p": case "pick":
+                return PICK;
+            case "r": case "reword":
+                return REWORD;
+            case "s": case "squash":
+                return SQUASH;
+            case "d": case "drop": case "skip":
+                return SKIP;
+            default:
+                return -1;
+        }
+    }
+
+    /** One line of a plan: a command, the id of its commit, and its message, if any. */
+    public static class Step {
+        private int command;
+        private int id;
+        private String message;
+
+        public int command() {
+            return command;
+        }
+
+        public int id() {
+            return id;
+        }
+
+        public String message() {
+            return message;
+        }
+    }
+}
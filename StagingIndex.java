@@ -0,0 +1,250 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/** Cache of the content hashes of files in the working directory, keyed by their stat data,
+ *  like git's index. If the size, modification time and inode of a file are the same as
+ *  when it was last hashed, its cached hash is used and the file is not read at all.
+ *  A file that was modified less than RACY_MILLIS before it was hashed could have changed
+ *  again without its modification time changing, so its hash is not trusted until the file
+ *  has been hashed again later.
+ *  The cache is saved in .kabgit/index and memory-mapped when loaded. Layout: "KSTG",
+ *  version, entry count, a table of the offsets of the entries, then the entries sorted by
+ *  path. Each entry holds the length and UTF-8 bytes of its path, its size, modification
+ *  time, inode, the time it was hashed, and the 32 byte hash. Lookups binary search the
+ *  mapped file, and changes are kept in memory until save rewrites it.
+ */
+public class StagingIndex {
+    private static final int MAGIC = 0x4b535447;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 12;
+    private static final long RACY_MILLIS = 1000;
+    private File indexFile;
+    private MappedByteBuffer mapped;
+    private int count;
+    private boolean loaded = false;
+    private boolean dirty = false;
+    private Map<String, Entry> changed = new ConcurrentHashMap<String, Entry>();
+
+    /** Creates an index stored in the given metadata directory.
+     *  @param root String path of the .kabgit folder */
+    public StagingIndex(String root) {
+        indexFile = new File(root, "index");
+    }
+
+    /** Returns the content hash of the given file, from the cache if its stat data has not
+     *  changed, and otherwise by hashing it with the given store and caching the result.
+     *  @param file File in the working directory
+     *  @param store ObjectStore used to hash the file */
+    public String hash(File file, ObjectStore store) throws IOException {
+        Entry stat = stat(file.toPath());
+        String path = file.getPath();
+        Entry cached = get(path);
+        if (cached != null && cached.sameStat(stat) && stat.mtime + RACY_MILLIS < cached.checked) {
+            return cached.hash;
+        }
+        stat.hash = store.hash(file);
+        stat.checked = System.currentTimeMillis();
+        put(path, stat);
+        return stat.hash;
+    }
+
+    /** Returns the content hash of the given file like hash does, and makes sure the given
+     *  store holds its contents. A file whose stat data has not changed and whose contents
+     *  are stored already is not read at all. Any other file is read once, by put, which
+     *  hashes and stores it in the same pass.
+     *  @param file File in the working directory
+     *  @param store ObjectStore the contents are stored in
+     *  @param base String hash of the previous version of the file, or null */
+    public String store(File file, ObjectStore store, String base) throws IOException {
+        Entry stat = stat(file.toPath());
+        String path = file.getPath();
+        Entry cached = get(path);
+        if (cached != null && cached.sameStat(stat) && stat.mtime + RACY_MILLIS < cached.checked
+                && (cached.hash.equals(base) || store.contains(cached.hash))) {
+            return cached.hash;
+        }
+        stat.hash = store.put(file, base);
+        stat.checked = System.currentTimeMillis();
+        put(path, stat);
+        return stat.hash;
+    }
+
+    /** Records that the file at the given path was just written with the content that has
+     *  the given hash, so that it need not be hashed again.
+     *  @param path String path of the file
+     *  @param hash String content hash of the file */
+    public void update(String path, String hash) {
+        try {
+            Entry stat = stat(new File(path).toPath());
+            stat.hash = hash;
+            stat.checked = System.currentTimeMillis();
+            put(path, stat);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /** Writes the index back to disk if anything changed since it was loaded. */
+    public synchronized void save() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        load();
+        Map<String, Entry> entries = new HashMap<String, Entry>();
+        for (int i = 0; i < count; i++) {
+            int offset = mapped.getInt(HEADER_SIZE + 4 * i);
+            entries.put(pathAt(offset), entryAt(offset));
+        }
+        entries.putAll(changed);
+        ArrayList<String> paths = new ArrayList<String>(entries.keySet());
+        Collections.sort(paths);
+        File temp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(paths.size());
+            int offset = HEADER_SIZE + 4 * paths.size();
+            ArrayList<byte[]> names = new ArrayList<byte[]>();
+            for (String path: paths) {
+                byte[] name = path.getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                out.writeInt(offset);
+                offset += 2 + name.length + 32 + 32;
+            }
+            for (int i = 0; i < paths.size(); i++) {
+                Entry e = entries.get(paths.get(i));
+                out.writeShort(names.get(i).length);
+                out.write(names.get(i));
+                out.writeLong(e.size);
+                out.writeLong(e.mtime);
+                out.writeLong(e.inode);
+                out.writeLong(e.checked);
+                out.write(ObjectStore.fromHex(e.hash));
+            }
+        }
+        Files.move(temp.toPath(), indexFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        dirty = false;
+    }
+
+    private void put(String path, Entry entry) {
+        changed.put(path, entry);
+        dirty = true;
+    }
+
+    /** Returns the cached entry for the given path, or null if there is none. */
+    private Entry get(String path) {
+        Entry entry = changed.get(path);
+        if (entry != null) {
+            return entry;
+        }
+        load();
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int offset = mapped.getInt(HEADER_SIZE + 4 * mid);
+            int cmp = pathAt(offset).compareTo(path);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return entryAt(offset);
+            }
+        }
+        return null;
+    }
+
+    private String pathAt(int offset) {
+        byte[] name = new byte[mapped.getShort(offset) & 0xffff];
+        for (int i = 0; i < name.length; i++) {
+            name[i] = mapped.get(offset + 2 + i);
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private Entry entryAt(int offset) {
+        int position = offset + 2 + (mapped.getShort(offset) & 0xffff);
+        Entry e = new Entry();
+        e.size = mapped.getLong(position);
+        e.mtime = mapped.getLong(position + 8);
+        e.inode = mapped.getLong(position + 16);
+        e.checked = mapped.getLong(position + 24);
+        byte[] hash = new byte[32];
+        for (int i = 0; i < hash.length; i++) {
+            hash[i] = mapped.get(position + 32 + i);
+        }
+        e.hash = ObjectStore.toHex(hash);
+        return e;
+    }
+
+    /** Maps the index file, if that has not happened yet. */
+    private synchronized void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r")) {
+            mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException("Corrupt index " + indexFile);
+            }
+            count = mapped.getInt(8);
+        } catch (IOException e) {
+            e.printStackTrace();
+            count = 0;
+        }
+    }
+
+    /** Reads the size, modification time and inode of the file at the given path. */
+    private static Entry stat(Path path) throws IOException {
+        Entry e = new Entry();
+        try {
+            Map<String, Object> attrs = Files.readAttributes(path, "unix:size,lastModifiedTime,ino");
+            e.size = (Long) attrs.get("size");
+            e.mtime = ((FileTime) attrs.get("lastModifiedTime")).toMillis();
+            e.inode = (Long) attrs.get("ino");
+        } catch (UnsupportedOperationException ex) {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            e.size = attrs.size();
+            e.mtime = attrs.lastModifiedTime().toMillis();
+            e.inode = attrs.fileKey() == null ? 0 : attrs.fileKey().hashCode();
+        }
+        return e;
+    }
+
+    /** Stat data and content hash of one file. */
+    private static class Entry {
+        private long size;
+        private long mtime;
+        private long inode;
+        private long checked;
+        private String hash;
+
+        private boolean sameStat(Entry other) {
+            return size == other.size && mtime == other.mtime && inode == other.inode;
+        }
+    }
+}
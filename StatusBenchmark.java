@@ -0,0 +1,90 @@
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/** Times WorkingTree.status on a tree of 100,000 files of 1 KB in 200 folders, all of them
+ *  in the commit, after 100 of them were edited and 100 untracked files were added. The
+ *  cold scan starts with an empty StagingIndex, so it hashes every file, and the index is
+ *  then saved. Each warm scan opens the saved index again, as the next command would, and
+ *  only stats the unchanged files. Both must report exactly the edited and added files.
+ *  Prints the cold scan, the index save and every warm scan in milliseconds. Run it with
+ *      java StatusBenchmark [number of files] [number of warm runs]
+ */
+public class StatusBenchmark {
+    private static final int FILES = 100000;
+    private static final int FOLDERS = 200;
+    private static final int SIZE = 1024;
+    private static final int CHANGES = 100;
+    private static final int RUNS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : FILES;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : RUNS;
+        File root = Bench.tempDir("kabgit-status");
+        try {
+            String metadata = new File(root, ".kabgit").getPath();
+            new File(metadata, "objects").mkdirs();
+            ObjectStore store = new ObjectStore(metadata);
+            Map<String, String> head = new HashMap<String, String>();
+            Random random = new Random(9);
+            byte[] content = new byte[SIZE];
+            long start = System.nanoTime();
+            for (int i = 0; i < count; i++) {
+                String name = "d" + (i % FOLDERS) + "/f" + i;
+                File file = new File(root, name);
+                file.getParentFile().mkdirs();
+                random.nextBytes(content);
+                Files.write(file.toPath(), content);
+                head.put(name, store.hash(file));
+            }
+            for (int i = 0; i < CHANGES; i++) {
+                Files.write(new File(root, "d" + (i % FOLDERS) + "/f" + i).toPath(),
+                            new byte[] {'!'}, StandardOpenOption.APPEND);
+                Files.write(new File(root, "d" + (i % FOLDERS) + "/new" + i).toPath(),
+                            content);
+            }
+            System.out.println("Wrote " + count + " files in " + Bench.millis(start)
+                               + " ms.");
+            // The index hashes again any file modified within a second of its last hash.
+            Thread.sleep(1100);
+            Set<String> none = new HashSet<String>();
+            IgnoreFile ignore = IgnoreFile.load(root);
+
+            StagingIndex index = new StagingIndex(metadata);
+            start = System.nanoTime();
+            check(new WorkingTree(root, index, store, ignore).status(head, none, none));
+            long cold = Bench.millis(start);
+            start = System.nanoTime();
+            index.save();
+            System.out.println("cold scan " + cold + " ms, saving the index "
+                               + Bench.millis(start) + " ms");
+
+            StringBuilder warm = new StringBuilder();
+            for (int run = 0; run < runs; run++) {
+                index = new StagingIndex(metadata);
+                start = System.nanoTime();
+                check(new WorkingTree(root, index, store, ignore).status(head, none, none));
+                warm.append(' ').append(Bench.millis(start));
+            }
+            System.out.println("warm scans" + warm + " ms");
+        } finally {
+            Bench.delete(root);
+        }
+    }
+
+    /** Throws an IllegalStateException unless the status lists exactly the edited files as
+     *  modified and the added files as untracked. */
+    private static void check(WorkingTree.Status status) {
+        if (status.modified().size() != CHANGES || status.untracked().size() != CHANGES
+                || !status.deleted().isEmpty()) {
+            throw new IllegalStateException("Status found " + status.modified().size()
+                    + " modified, " + status.untracked().size() + " untracked and "
+                    + status.deleted().size() + " deleted files.");
+        }
+    }
+}
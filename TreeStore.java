@@ -0,0 +1,226 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/** Reads and writes the tree objects that hold the files of commits. A tree lists one
+ *  folder: it maps the name of each file in the folder to the hash of its content, and the
+ *  name of each subfolder, followed by a '/', to the hash of the tree of that subfolder.
+ *  Trees are stored in the ObjectStore like file contents, so a tree is addressed by the
+ *  hash of its listing and two commits that have the same folder share its tree and every
+ *  tree below it. A commit only holds the hash of its root tree.
+ *  Updating a tree only rewrites the folders on the paths that changed, and comparing two
+ *  trees skips every subfolder whose hash is the same in both, so both cost time in the
+ *  number of changed files rather than the number of tracked files.
+ *  Tree layout: the number of entries, then for each entry in name order its name and the
+ *  32 byte hash. Recently read trees are kept in a small cache.
+ */
+public class TreeStore {
+    private static final int CACHE_SIZE = 4096;
+    private static final int HASH_SIZE = 32;
+    private ObjectStore store;
+    private String empty;
+    private LinkedHashMap<String, SortedMap<String, String>> cache =
+        new LinkedHashMap<String, SortedMap<String, String>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, SortedMap<String, String>> e) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    /** Creates a tree store that keeps its trees in the given object store.
+     *  @param s ObjectStore the trees are saved in */
+    public TreeStore(ObjectStore s) {
+        store = s;
+    }
+
+    /** Returns the hash of the tree of an empty folder, storing it if needed. */
+    public String empty() throws IOException {
+        if (empty == null) {
+            empty = write(new TreeMap<String, String>());
+        }
+        return empty;
+    }
+
+    /** Returns the hash of the content of the file at the given path in the tree with the
+     *  given hash, or null if the tree has no such file. A path that ends with a '/' names
+     *  a folder, and the hash of its tree is returned instead.
+     *  @param root String hash of a root tree
+     *  @param path String path of the file, with '/' between folders */
+    public String lookup(String root, String path) throws IOException {
+        String hash = root;
+        SortedMap<String, String> tree = read(root);
+        int start = 0;
+        int slash;
+        while ((slash = path.indexOf('/', start)) >= 0) {
+            hash = tree.get(path.substring(start, slash + 1));
+            if (hash == null) {
+                return null;
+            }
+            tree = read(hash);
+            start = slash + 1;
+        }
+        if (start == path.length()) {
+            return hash;
+        }
+        return tree.get(path.substring(start));
+    }
+
+    /** Returns a map of the path of every file in the tree with the given hash to the hash
+     *  of its content.
+     *  @param root String hash of a root tree */
+    public HashMap<String, String> flatten(String root) throws IOException {
+        HashMap<String, String> files = new HashMap<String, String>();
+        flatten(root, "", files);
+        return files;
+    }
+
+    private void flatten(String hash, String prefix, Map<String, String> files)
+            throws IOException {
+        for (Map.Entry<String, String> e: read(hash).entrySet()) {
+            if (isFolder(e.getKey())) {
+                flatten(e.getValue(), prefix + e.getKey(), files);
+            } else {
+                files.put(prefix + e.getKey(), e.getValue());
+            }
+        }
+    }
+
+    /** Returns the hash of the tree that has the files of the tree with the given hash, with
+     *  each given path set to the given content hash, or removed where it is mapped to null.
+     *  Folders left empty are removed, and only folders that change are written.
+     *  @param root String hash of a root tree
+     *  @param changes Map of file paths to content hashes, or to null for removed files */
+    public String update(String root, Map<String, String> changes) throws IOException {
+        if (changes.isEmpty()) {
+            return root;
+        }
+        TreeMap<String, String> tree = new TreeMap<String, String>(read(root));
+        TreeMap<String, Map<String, String>> folders = new TreeMap<String, Map<String, String>>();
+        for (Map.Entry<String, String> e: changes.entrySet()) {
+            String path = e.getKey();
+            int slash = path.indexOf('/');
+            if (slash >= 0) {
+                String folder = path.substring(0, slash + 1);
+                Map<String, String> sub = folders.get(folder);
+                if (sub == null) {
+                    sub = new HashMap<String, String>();
+                    folders.put(folder, sub);
+                }
+                sub.put(path.substring(slash + 1), e.getValue());
+            } else if (e.getValue() == null) {
+                tree.remove(path);
+            } else {
+                tree.remove(path + "/");
+                tree.put(path, e.getValue());
+            }
+        }
+        for (Map.Entry<String, Map<String, String>> e: folders.entrySet()) {
+            String folder = e.getKey();
+            String old = tree.get(folder);
+            String hash = update(old == null ? empty() : old, e.getValue());
+            if (hash.equals(empty())) {
+                tree.remove(folder);
+            } else {
+                tree.remove(folder.substring(0, folder.length() - 1));
+                tree.put(folder, hash);
+            }
+        }
+        return write(tree);
+    }
+
+    /** Returns the files that differ between the trees with the given hashes, sorted by
+     *  path, each mapped to its content hash in the tree to, or to null if the tree to does
+     *  not have it. Subfolders with the same hash in both trees are skipped.
+     *  @param from String hash of a root tree
+     *  @param to String hash of a root tree */
+    public TreeMap<String, String> diff(String from, String to) throws IOException {
+        TreeMap<String, String> changes = new TreeMap<String, String>();
+        diff(from, to, "", changes);
+        return changes;
+    }
+
+    private void diff(String from, String to, String prefix, Map<String, String> changes)
+            throws IOException {
+        if (from.equals(to)) {
+            return;
+        }
+        SortedMap<String, String> a = read(from);
+        SortedMap<String, String> b = read(to);
+        for (Map.Entry<String, String> e: a.entrySet()) {
+            String name = e.getKey();
+            String other = b.get(name);
+            if (isFolder(name)) {
+                diff(e.getValue(), other == null ? empty() : other, prefix + name, changes);
+            } else if (other == null) {
+                changes.put(prefix + name, null);
+            } else if (!other.equals(e.getValue())) {
+                changes.put(prefix + name, other);
+            }
+        }
+        for (Map.Entry<String, String> e: b.entrySet()) {
+            String name = e.getKey();
+            if (a.containsKey(name)) {
+                continue;
+            }
+            if (isFolder(name)) {
+                flatten(e.getValue(), prefix + name, changes);
+            } else {
+                changes.put(prefix + name, e.getValue());
+            }
+        }
+    }
+
+    /** Returns the entries of the tree with the given hash, reading it from the object
+     *  store if it is not cached.
+     *  @param hash String hash of a tree */
+    public SortedMap<String, String> read(String hash) throws IOException {
+        synchronized (cache) {
+            SortedMap<String, String> tree = cache.get(hash);
+            if (tree != null) {
+                return tree;
+            }
+        }
+        TreeMap<String, String> tree = new TreeMap<String, String>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(store.read(hash)));
+        int count = in.readInt();
+        byte[] entry = new byte[HASH_SIZE];
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            in.readFully(entry);
+            tree.put(name, ObjectStore.toHex(entry));
+        }
+        SortedMap<String, String> res = Collections.unmodifiableSortedMap(tree);
+        synchronized (cache) {
+            cache.put(hash, res);
+        }
+        return res;
+    }
+
+    /** Stores the tree with the given entries and returns its hash. */
+    private String write(SortedMap<String, String> tree) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(tree.size());
+        for (Map.Entry<String, String> e: tree.entrySet()) {
+            out.writeUTF(e.getKey());
+            out.write(ObjectStore.fromHex(e.getValue()));
+        }
+        String hash = store.put(ObjectStore.TREE, bytes.toByteArray());
+        synchronized (cache) {
+            cache.put(hash, Collections.unmodifiableSortedMap(new TreeMap<String, String>(tree)));
+        }
+        return hash;
+    }
+
+    private static boolean isFolder(String name) {
+        return name.endsWith("/");
+    }
+}
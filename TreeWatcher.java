@@ -0,0 +1,262 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/** Watches the working directory for changes, so that the daemon can answer status by
+ *  looking only at the paths that changed since the last time. Every folder except .kabgit
+ *  is registered with a WatchService, and a background thread adds the path of every
+ *  created, modified or deleted entry to a set of dirty paths. A folder that is created
+ *  is registered and its whole content counts as dirty, since files can be written into
+ *  it before it is watched.
+ *  status keeps the result of the last scan. The next call classifies again only the dirty
+ *  paths, the files under dirty folders, the files whose entry in the current commit
+ *  changed in between, which a tree diff finds, and the staged files and files marked for
+ *  removal then and now. It falls back to a full scan the first time, whenever the
+ *  watch service reports that it dropped events, and when the ignore file changed.
+ *  Events arrive some time after the write that causes them, so before each call status
+ *  writes a cookie file into the root and waits until the watcher reports it. Events for
+ *  earlier writes have been taken by then. If the cookie is not reported in time, it
+ *  scans the whole tree.
+ */
+public class TreeWatcher {
+    private static final String COOKIE = ".kabgit-cookie-";
+    private static final long SYNC_TIMEOUT = 2000;
+    private Path root;
+    private WatchService service;
+    private HashMap<WatchKey, Path> keys = new HashMap<WatchKey, Path>();
+    private HashSet<String> dirty = new HashSet<String>();
+    private boolean overflow = false;
+    private WorkingTree.Status last;
+    private String lastTree;
+    private Set<String> lastStaged;
+    private Set<String> lastRemoved;
+    private long cookies = 0;
+    private String cookie;
+    private boolean cookieSeen;
+
+    /** Starts watching the given working directory.
+     *  @param r Path root of the working directory */
+    public TreeWatcher(Path r) throws IOException {
+        root = r.toAbsolutePath().normalize();
+        service = root.getFileSystem().newWatchService();
+        register(root);
+        Thread thread = new Thread(this::watch, "kabgit-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** Registers the given folder and every folder below it, except .kabgit, and returns
+     *  the paths of the files in them. */
+    private synchronized List<String> register(Path dir) throws IOException {
+        ArrayList<String> files = new ArrayList<String>();
+        ArrayList<Path> dirs = new ArrayList<Path>();
+        dirs.add(dir);
+        while (!dirs.isEmpty()) {
+            Path next = dirs.remove(dirs.size() - 1);
+            keys.put(next.register(service, StandardWatchEventKinds.ENTRY_CREATE,
+                                   StandardWatchEventKinds.ENTRY_DELETE,
+                                   StandardWatchEventKinds.ENTRY_MODIFY), next);
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(next)) {
+                for (Path entry: entries) {
+                    if (Files.isDirectory(entry)) {
+                        if (!relative(entry).equals(".kabgit")) {
+                            dirs.add(entry);
+                        }
+                    } else {
+                        files.add(relative(entry));
+                    }
+                }
+            }
+        }
+        return files;
+    }
+
+    /** Takes events from the watch service until the daemon ends. */
+    private void watch() {
+        while (true) {
+            WatchKey key;
+            try {
+                key = service.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Path dir;
+            synchronized (this) {
+                dir = keys.get(key);
+            }
+            for (WatchEvent<?> event: key.pollEvents()) {
+                if (event.kind() == StandardWatchEventKinds.OVERFLOW || dir == null) {
+                    synchronized (this) {
+                        overflow = true;
+                    }
+                    continue;
+                }
+                Path path = dir.resolve((Path) event.context());
+                String name = relative(path);
+                if (name.equals(".kabgit") || name.startsWith(".kabgit/")) {
+                    continue;
+                }
+                if (name.startsWith(COOKIE)) {
+                    synchronized (this) {
+                        if (name.equals(cookie)) {
+                            cookieSeen = true;
+                            notifyAll();
+                        }
+                    }
+                    continue;
+                }
+                List<String> files = null;
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                        && Files.isDirectory(path)) {
+                    try {
+                        files = register(path);
+                    } catch (IOException e) {
+                        synchronized (this) {
+                            overflow = true;
+                        }
+                    }
+                }
+                synchronized (this) {
+                    dirty.add(name);
+                    if (files != null) {
+                        dirty.addAll(files);
+                    }
+                }
+            }
+            if (!key.reset()) {
+                synchronized (this) {
+                    keys.remove(key);
+                }
+            }
+        }
+    }
+
+    /** Returns the status of the working directory against the given commit and staging
+     *  area, like WorkingTree.status, looking only at the paths that may have changed since
+     *  the last call.
+     *  @param tree WorkingTree of the working directory
+     *  @param head Commit the working directory is compared with
+     *  @param staged Set of staged file names
+     *  @param removed Set of file names marked for removal */
+    public synchronized WorkingTree.Status status(WorkingTree tree, Commit head,
+                                                  Set<String> staged, Set<String> removed) {
+        boolean synced = sync();
+        Set<String> changed = dirty;
+        dirty = new HashSet<String>();
+        WorkingTree.Status res = null;
+        if (synced && last != null && !overflow && !changed.contains(IgnoreFile.NAME)) {
+            try {
+                res = tree.update(last, expand(changed, head, staged, removed),
+                                  head.fileMap(), staged, removed);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (res == null) {
+            overflow = false;
+            res = tree.status(head.fileMap(), staged, removed);
+        }
+        last = res;
+        lastTree = head.tree();
+        lastStaged = new HashSet<String>(staged);
+        lastRemoved = new HashSet<String>(removed);
+        return res;
+    }
+
+    /** Writes a new cookie file into the root, waits until the watcher thread reports it
+     *  and deletes it. Returns whether it was reported within SYNC_TIMEOUT milliseconds. */
+    private synchronized boolean sync() {
+        cookie = COOKIE + ++cookies;
+        cookieSeen = false;
+        Path file = root.resolve(cookie);
+        try {
+            Files.write(file, new byte[0]);
+            long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SYNC_TIMEOUT);
+            while (!cookieSeen) {
+                long left = TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime());
+                if (left <= 0) {
+                    break;
+                }
+                wait(left);
+            }
+            return cookieSeen;
+        } catch (IOException e) {
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            cookie = null;
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Returns the given dirty paths, with the files under each of them that is or was a
+     *  folder, and with the files whose entry in the commit or the staging area changed
+     *  since the last call. */
+    private Set<String> expand(Set<String> changed, Commit head, Set<String> staged,
+                               Set<String> removed) throws IOException {
+        LinkedHashSet<String> paths = new LinkedHashSet<String>(changed);
+        TreeStore trees = head.trees();
+        paths.addAll(trees.diff(lastTree, head.tree()).keySet());
+        paths.addAll(staged);
+        paths.addAll(removed);
+        paths.addAll(lastStaged);
+        paths.addAll(lastRemoved);
+        for (String path: changed) {
+            String folder = path + "/";
+            String hash = trees.lookup(head.tree(), folder);
+            if (hash != null) {
+                for (String file: trees.flatten(hash).keySet()) {
+                    paths.add(folder + file);
+                }
+            }
+            for (String file: staged) {
+                if (file.startsWith(folder)) {
+                    paths.add(file);
+                }
+            }
+            addUnder(paths, last.modified(), folder);
+            addUnder(paths, last.deleted(), folder);
+            addUnder(paths, last.untracked(), folder);
+            Path dir = root.resolve(path);
+            if (Files.isDirectory(dir)) {
+                try (Stream<Path> files = Files.walk(dir)) {
+                    files.filter(Files::isRegularFile).forEach(f -> paths.add(relative(f)));
+                }
+            }
+        }
+        return paths;
+    }
+
+    /** Adds the paths in the given sorted list that are under the given folder. */
+    private static void addUnder(Set<String> paths, List<String> sorted, String folder) {
+        int i = Collections.binarySearch(sorted, folder);
+        for (i = i < 0 ? -i - 1 : i; i < sorted.size() && sorted.get(i).startsWith(folder); i++) {
+            paths.add(sorted.get(i));
+        }
+    }
+
+    private String relative(Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+}
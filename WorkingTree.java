@@ -0,0 +1,213 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/** Compares the files in the working directory against a commit. The directory is walked
+ *  in parallel on a fork-join pool, one task per folder. A tracked file is only read when
+ *  its stat data no longer matches the StagingIndex, so an unchanged tree costs a stat
+ *  per file. Paths are relative to the working directory and use '/' as the separator,
+ *  and the .kabgit folder is skipped. Untracked files that the IgnoreFile ignores are not
+ *  reported.
+ */
+public class WorkingTree {
+    private File root;
+    private StagingIndex index;
+    private ObjectStore store;
+    private IgnoreFile ignore;
+
+    /** Creates a working tree rooted at the given directory.
+     *  @param r File root of the working directory
+     *  @param i StagingIndex used to avoid hashing unchanged files
+     *  @param s ObjectStore used to hash changed files
+     *  @param g IgnoreFile of the untracked files to leave out */
+    public WorkingTree(File r, StagingIndex i, ObjectStore s, IgnoreFile g) {
+        root = r;
+        index = i;
+        store = s;
+        ignore = g;
+    }
+
+    /** Returns the status of the working directory against the files of the given commit
+     *  and the staging area. A file is modified if it is in the commit, is not staged or
+     *  marked for removal, and its content differs. It is deleted if it is staged, or in the
+     *  commit and not marked for removal, and is missing. It is untracked if it is neither
+     *  in the commit nor staged, unless it is ignored.
+     *  @param head Map of file names to content hashes in the current commit
+     *  @param staged Set of staged file names
+     *  @param removed Set of file names marked for removal */
+    public Status status(Map<String, String> head, Set<String> staged, Set<String> removed) {
+        Status status = new Status();
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        Queue<String> modified = new ConcurrentLinkedQueue<String>();
+        Queue<String> untracked = new ConcurrentLinkedQueue<String>();
+        ForkJoinPool.commonPool().invoke(new ScanTask(root.toPath(), "", false, head, staged,
+                                                      removed, seen, modified, untracked));
+        status.modified.addAll(modified);
+        status.untracked.addAll(untracked);
+        for (String file: head.keySet()) {
+            if (!seen.contains(file) && !removed.contains(file)) {
+                status.deleted.add(file);
+            }
+        }
+        for (String file: staged) {
+            if (!seen.contains(file) && !head.containsKey(file)) {
+                status.deleted.add(file);
+            }
+        }
+        Collections.sort(status.modified);
+        Collections.sort(status.deleted);
+        Collections.sort(status.untracked);
+        return status;
+    }
+
+    /** Returns the status of the working directory against the files of the given commit
+     *  and the staging area, given its status at an earlier time and every path whose
+     *  status may have changed since. Only those paths are looked at, as status would.
+     *  @param previous Status of the working directory at the earlier time
+     *  @param paths Collection of the paths that may have changed
+     *  @param head Map of file names to content hashes in the current commit
+     *  @param staged Set of staged file names
+     *  @param removed Set of file names marked for removal */
+    public Status update(Status previous, Collection<String> paths, Map<String, String> head,
+                         Set<String> staged, Set<String> removed) {
+        TreeSet<String> modified = new TreeSet<String>(previous.modified);
+        TreeSet<String> deleted = new TreeSet<String>(previous.deleted);
+        TreeSet<String> untracked = new TreeSet<String>(previous.untracked);
+        for (String name: paths) {
+            modified.remove(name);
+            deleted.remove(name);
+            untracked.remove(name);
+            String hash = head.get(name);
+            Path file = root.toPath().resolve(name);
+            if (!Files.isRegularFile(file)) {
+                if ((hash != null && !removed.contains(name))
+                        || (hash == null && staged.contains(name))) {
+                    deleted.add(name);
+                }
+            } else if (hash == null && !staged.contains(name)) {
+                if (!ignore.ignores(name)) {
+                    untracked.add(name);
+                }
+            } else if (hash != null && !staged.contains(name) && !removed.contains(name)) {
+                try {
+                    if (!hash.equals(index.hash(file.toFile(), store))) {
+                        modified.add(name);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        Status status = new Status();
+        status.modified.addAll(modified);
+        status.deleted.addAll(deleted);
+        status.untracked.addAll(untracked);
+        return status;
+    }
+
+    /** Scans one folder, forking a task for each of its subfolders. An ignored folder is
+     *  still scanned, since it can hold tracked files, but its untracked files are not
+     *  reported. */
+    private class ScanTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private Path dir;
+        private String prefix;
+        private boolean ignored;
+        private Map<String, String> head;
+        private Set<String> staged;
+        private Set<String> removed;
+        private Set<String> seen;
+        private Queue<String> modified;
+        private Queue<String> untracked;
+
+        ScanTask(Path dir, String prefix, boolean ignored, Map<String, String> head,
+                 Set<String> staged, Set<String> removed, Set<String> seen,
+                 Queue<String> modified, Queue<String> untracked) {
+            this.dir = dir;
+            this.prefix = prefix;
+            this.ignored = ignored;
+            this.head = head;
+            this.staged = staged;
+            this.removed = removed;
+            this.seen = seen;
+            this.modified = modified;
+            this.untracked = untracked;
+        }
+
+        @Override
+        protected void compute() {
+            List<ScanTask> subtasks = new ArrayList<ScanTask>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+                for (Path entry: entries) {
+                    String name = prefix + entry.getFileName().toString();
+                    if (Files.isDirectory(entry)) {
+                        if (!name.equals(".kabgit")) {
+                            boolean skip = ignored || ignore.matches(name, true);
+                            subtasks.add(new ScanTask(entry, name + "/", skip, head, staged,
+                                                      removed, seen, modified, untracked));
+                        }
+                    } else if (Files.isRegularFile(entry)) {
+                        check(entry, name);
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            invokeAll(subtasks);
+        }
+
+        private void check(Path file, String name) {
+            String hash = head.get(name);
+            if (hash == null && !staged.contains(name)) {
+                if (!ignored && !ignore.matches(name, false)) {
+                    untracked.add(name);
+                }
+                return;
+            }
+            seen.add(name);
+            if (hash == null || staged.contains(name) || removed.contains(name)) {
+                return;
+            }
+            try {
+                if (!hash.equals(index.hash(file.toFile(), store))) {
+                    modified.add(name);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Sorted lists of the modified, deleted and untracked files in a working tree. */
+    public static class Status {
+        private List<String> modified = new ArrayList<String>();
+        private List<String> deleted = new ArrayList<String>();
+        private List<String> untracked = new ArrayList<String>();
+
+        public List<String> modified() {
+            return modified;
+        }
+
+        public List<String> deleted() {
+            return deleted;
+        }
+
+        public List<String> untracked() {
+            return untracked;
+        }
+    }
+}